@@ -0,0 +1,182 @@
+package com.jesseanderson.monkeys;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A thread safe cache for the big things a JVM loads once and shares: the works, the
+ * filters and the indexes.  Loading is single flight, the first thread to ask for an
+ * artifact loads it and every other thread asking at the same time waits for that load
+ * instead of starting its own.  Each artifact's size is counted and the least recently
+ * used ones are dropped once the total goes over the limit.
+ */
+public class ArtifactCache {
+	/**
+	 * Loads an artifact and says how much memory it takes
+	 * @param <T> The type of artifact
+	 */
+	public interface Loader<T> {
+		/**
+		 * Loads the artifact.  Only called once per key until it's evicted
+		 * @return The artifact
+		 */
+		public T load() throws IOException;
+
+		/**
+		 * Gets the memory an artifact takes
+		 * @param artifact The artifact load returned
+		 * @return The size in bytes
+		 */
+		public long getSizeInBytes(T artifact);
+	}
+
+	/** The loads, finished or still running, by key */
+	private final ConcurrentHashMap<String, FutureTask<Object>> loads = new ConcurrentHashMap<String, FutureTask<Object>>();
+	/** The sizes of the finished loads, least recently used first.  Guarded by itself */
+	private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	/** The total size of the finished loads.  Guarded by sizes */
+	private long totalBytes;
+	/** The most the artifacts can take before the least recently used are dropped */
+	private final long maxBytes;
+
+	/**
+	 * Creates an empty cache
+	 * @param maxBytes The most the artifacts can take before the least recently used are dropped
+	 */
+	public ArtifactCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Gets an artifact, loading it if no other thread has
+	 * @param key The artifact's key.  Must be unique across every kind of artifact
+	 * @param loader Loads the artifact if it isn't cached
+	 * @return The artifact
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(final String key, final Loader<T> loader) throws IOException {
+		FutureTask<Object> load = loads.get(key);
+
+		if (load == null) {
+			FutureTask<Object> newLoad = new FutureTask<Object>(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					return loader.load();
+				}
+			});
+
+			load = loads.putIfAbsent(key, newLoad);
+
+			if (load == null) {
+				// This thread won, load it here
+				load = newLoad;
+				load.run();
+
+				try {
+					added(key, loader.getSizeInBytes((T) load.get()));
+				} catch (Exception e) {
+					// Let the next caller try again
+					loads.remove(key, load);
+				}
+			}
+		}
+
+		try {
+			T artifact = (T) load.get();
+			touch(key);
+
+			return artifact;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for " + key);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+
+			throw new IOException("Unable to load " + key, e.getCause());
+		}
+	}
+
+	/**
+	 * Marks an artifact as just used
+	 * @param key The artifact's key
+	 */
+	private void touch(String key) {
+		synchronized (sizes) {
+			sizes.get(key);
+		}
+	}
+
+	/**
+	 * Counts a finished load and drops the least recently used artifacts if that
+	 * takes the total over the limit.  The newest artifact is always kept
+	 * @param key The artifact's key
+	 * @param bytes The artifact's size
+	 */
+	private void added(String key, long bytes) {
+		synchronized (sizes) {
+			sizes.put(key, bytes);
+			totalBytes += bytes;
+
+			Iterator<Map.Entry<String, Long>> iterator = sizes.entrySet().iterator();
+
+			while (totalBytes > maxBytes && iterator.hasNext()) {
+				Map.Entry<String, Long> eldest = iterator.next();
+
+				if (eldest.getKey().equals(key)) {
+					continue;
+				}
+
+				MonkeyUtils.logger.info("Evicting " + eldest.getKey() + " size:" + eldest.getValue());
+
+				loads.remove(eldest.getKey());
+				totalBytes -= eldest.getValue();
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drops every artifact
+	 */
+	public void clear() {
+		synchronized (sizes) {
+			loads.clear();
+			sizes.clear();
+			totalBytes = 0;
+		}
+	}
+
+	/**
+	 * Gets the total size of the cached artifacts
+	 * @return The size in bytes
+	 */
+	public long getTotalBytes() {
+		synchronized (sizes) {
+			return totalBytes;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.jesseanderson.monkeys;
+
+import org.apache.hadoop.conf.Configuration;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Picks how many letters each map call types.  After every iteration the candidates per
+ * second the map calls managed sets the next batch size so a call takes about targetMillis.
+ * Short calls don't pay back their startup and long ones don't report progress.  The batch
+ * size can only double or halve each iteration so one slow call doesn't throw it off.
+ */
+public class BatchSizer {
+	/** The JobConf property for how long a map call should spend typing */
+	public static final String TARGET_MILLIS_PROPERTY = "monkeys.batch.target.millis";
+	/** The JobConf property for the fewest letters a map call types */
+	public static final String MIN_BATCH_SIZE_PROPERTY = "monkeys.batch.min.size";
+	/** The JobConf property for the most letters a map call types */
+	public static final String MAX_BATCH_SIZE_PROPERTY = "monkeys.batch.max.size";
+	/** The JobConf property for the most the batch size changes by in one iteration */
+	public static final String MAX_CHANGE_PROPERTY = "monkeys.batch.max.change";
+	/** How long a map call should spend typing when it isn't set */
+	public static final long DEFAULT_TARGET_MILLIS = 30000;
+	/** The fewest letters a map call types when it isn't set */
+	public static final long DEFAULT_MIN_BATCH_SIZE = MonkeyMapper.MAP_ITERATION_SIZE / 10;
+	/** The most letters a map call types when it isn't set.  The letters are in one array so this keeps it small */
+	public static final long DEFAULT_MAX_BATCH_SIZE = MonkeyMapper.MAP_ITERATION_SIZE * 64;
+	/** The most the batch size changes by in one iteration when it isn't set */
+	public static final long DEFAULT_MAX_CHANGE = 2;
+
+	/** How long a map call should spend typing */
+	private long targetMillis = DEFAULT_TARGET_MILLIS;
+	/** The fewest letters a map call types */
+	private long minBatchSize = DEFAULT_MIN_BATCH_SIZE;
+	/** The most letters a map call types */
+	private long maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	/** The most the batch size changes by in one iteration */
+	private long maxChange = DEFAULT_MAX_CHANGE;
+	/** The number of letters each map call types next */
+	private long batchSize;
+
+	/**
+	 * Creates the sizer with the default limits
+	 * @param batchSize The number of letters for the first iteration
+	 */
+	public BatchSizer(long batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Creates the sizer with the limits and first batch size set in the configuration
+	 * @param conf The configuration
+	 */
+	public BatchSizer(Configuration conf) {
+		targetMillis = conf.getLong(TARGET_MILLIS_PROPERTY, DEFAULT_TARGET_MILLIS);
+		minBatchSize = conf.getLong(MIN_BATCH_SIZE_PROPERTY, DEFAULT_MIN_BATCH_SIZE);
+		maxBatchSize = conf.getLong(MAX_BATCH_SIZE_PROPERTY, DEFAULT_MAX_BATCH_SIZE);
+		maxChange = conf.getLong(MAX_CHANGE_PROPERTY, DEFAULT_MAX_CHANGE);
+
+		// A map call types its letters into one array
+		if (targetMillis <= 0 || minBatchSize <= 0 || maxBatchSize < minBatchSize || maxBatchSize > Integer.MAX_VALUE ||
+				maxChange < 1) {
+			throw new IllegalArgumentException("Invalid batch sizes: target " + targetMillis + " ms, from " + minBatchSize + 
+					" to " + maxBatchSize + " letters changing by up to " + maxChange + " times");
+		}
+
+		batchSize = Math.max(Math.min(conf.getLong(MonkeyMapper.BATCH_SIZE_PROPERTY, MonkeyMapper.MAP_ITERATION_SIZE), 
+				maxBatchSize), minBatchSize);
+	}
+
+	/**
+	 * Gets the number of letters each map call should type next
+	 * @return The batch size
+	 */
+	public long getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the next batch size from how fast the last iteration's map calls typed.
+	 * The time is summed over the calls, so candidates over millis is how fast one call types
+	 * however many calls ran side by side
+	 * @param candidates The number of candidates all the map calls typed
+	 * @param millis The total time all the map calls spent typing, added up over the calls
+	 * @return The new batch size
+	 */
+	public long update(long candidates, long millis) {
+		if (candidates == 0) {
+			return batchSize;
+		}
+
+		double candidatesPerMilli = (double) candidates / Math.max(millis, 1);
+		long ideal = (long) (candidatesPerMilli * targetMillis);
+
+		ideal = Math.max(Math.min(ideal, batchSize * maxChange), batchSize / maxChange);
+		batchSize = Math.max(Math.min(ideal, maxBatchSize), minBatchSize);
+
+		MonkeyUtils.logger.info("Each map call typed " + (long) (candidatesPerMilli * 1000) + " candidates/sec.  Batch size now " +
+				batchSize);
+
+		return batchSize;
+	}
+}
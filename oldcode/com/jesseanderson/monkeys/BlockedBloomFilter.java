@@ -0,0 +1,167 @@
+package com.jesseanderson.monkeys;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A cache line blocked Bloom Filter.  One mix of the packed quote picks a 512 bit block
+ * and all nbHash bits are set inside that block, so a test is one hash and one memory
+ * access instead of nbHash random cache misses.  Blocking raises the false positive rate
+ * a little over a plain Bloom Filter with the same bits, which forFalsePositiveRate
+ * makes up for with extra space.
+ */
+public class BlockedBloomFilter implements BuildableQuoteFilter, MappableQuoteFilter {
+	/** The number of longs in a block.  8 longs is a 64 byte cache line */
+	private static final int BLOCK_LONGS = 8;
+	/** The number of bits in a block */
+	private static final int BLOCK_BITS = BLOCK_LONGS * 64;
+	/** The extra space to give a blocked filter to match a plain filter's false positive rate */
+	private static final double BLOCKING_OVERHEAD = 1.2;
+
+	/** The number of blocks */
+	private int blocks;
+	/** The number of bits set per quote */
+	private int nbHash;
+	/** The bits, BLOCK_LONGS longs per block.  On the heap or mapped from the filter's file */
+	private LongBuffer bits;
+
+	/**
+	 * Creates an empty filter for use with readFields
+	 */
+	public BlockedBloomFilter() {
+	}
+
+	/**
+	 * Creates an empty filter with about the same space as a plain Bloom Filter
+	 * @param vectorSize The number of bits.  Rounded up to a whole block
+	 * @param nbHash The number of bits set per quote
+	 */
+	public BlockedBloomFilter(int vectorSize, int nbHash) {
+		if (nbHash < 1 || nbHash > BLOCK_BITS) {
+			throw new IllegalArgumentException("nbHash must be between 1 and " + BLOCK_BITS + " was " + nbHash);
+		}
+
+		this.blocks = Math.max((int) (((long) vectorSize + BLOCK_BITS - 1) / BLOCK_BITS), 1);
+		this.nbHash = nbHash;
+
+		bits = LongBuffer.wrap(new long[blocks * BLOCK_LONGS]);
+	}
+
+	/**
+	 * Creates an empty filter sized for a false positive rate
+	 * @param expectedEntries The number of distinct quotes that will be added
+	 * @param falsePositiveRate The wanted false positive rate, between 0 and 1
+	 * @return The filter
+	 */
+	public static BlockedBloomFilter forFalsePositiveRate(long expectedEntries, double falsePositiveRate) {
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("False positive rate must be between 0 and 1 was " + falsePositiveRate);
+		}
+
+		double ln2 = Math.log(2);
+		double bitsPerEntry = (-Math.log(falsePositiveRate) / (ln2 * ln2)) * BLOCKING_OVERHEAD;
+		int nbHash = Math.max(1, Math.min(16, (int) Math.round((bitsPerEntry / BLOCKING_OVERHEAD) * ln2)));
+		long vectorSize = (long) Math.ceil(Math.max(expectedEntries, 1) * bitsPerEntry);
+
+		return new BlockedBloomFilter((int) Math.min(vectorSize, Integer.MAX_VALUE - BLOCK_BITS), nbHash);
+	}
+
+	@Override
+	public void add(long quote) {
+		// The block comes from the high 32 bits, the bits in the block from the low 18
+		long hash = QuoteCodec.mix(quote);
+		int base = block(hash);
+		int position = (int) hash;
+		int step = ((int) hash >>> 9) | 1;
+
+		for (int i = 0; i < nbHash; i++) {
+			int bit = position & (BLOCK_BITS - 1);
+			bits.put(base + (bit >>> 6), bits.get(base + (bit >>> 6)) | (1L << bit));
+			position += step;
+		}
+	}
+
+	@Override
+	public boolean membershipTest(long quote) {
+		long hash = QuoteCodec.mix(quote);
+		int base = block(hash);
+		int position = (int) hash;
+		int step = ((int) hash >>> 9) | 1;
+
+		for (int i = 0; i < nbHash; i++) {
+			int bit = position & (BLOCK_BITS - 1);
+
+			if ((bits.get(base + (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+
+			position += step;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Picks the block from the high bits of the hash with a multiply-shift
+	 * @param hash The mixed quote
+	 * @return The index of the block's first long
+	 */
+	private int block(long hash) {
+		return ((int) (((hash >>> 32) * blocks) >>> 32)) * BLOCK_LONGS;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(blocks);
+		out.writeInt(nbHash);
+
+		for (int i = 0; i < bits.limit(); i++) {
+			out.writeLong(bits.get(i));
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		blocks = in.readInt();
+		nbHash = in.readInt();
+
+		long[] array = new long[blocks * BLOCK_LONGS];
+
+		for (int i = 0; i < array.length; i++) {
+			array[i] = in.readLong();
+		}
+
+		bits = LongBuffer.wrap(array);
+	}
+
+	@Override
+	public void wrap(ByteBuffer buffer) {
+		blocks = buffer.getInt(0);
+		nbHash = buffer.getInt(4);
+
+		buffer.position(8);
+		bits = buffer.slice().asLongBuffer();
+	}
+
+	@Override
+	public long getSizeInBytes() {
+		return bits.limit() * 8L;
+	}
+}
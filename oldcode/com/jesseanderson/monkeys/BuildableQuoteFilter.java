@@ -0,0 +1,27 @@
+package com.jesseanderson.monkeys;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A quote filter that is built by adding the works' quotes to it one at a time (see
+ * MonkeyUtils.breakUp).  Filters that are laid out all at once only implement QuoteFilter.
+ */
+public interface BuildableQuoteFilter extends QuoteFilter {
+	/**
+	 * Adds a quote to the filter
+	 * @param quote The packed quote
+	 */
+	public void add(long quote);
+}
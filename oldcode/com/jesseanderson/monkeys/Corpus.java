@@ -0,0 +1,128 @@
+package com.jesseanderson.monkeys;
+
+import java.util.Arrays;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * All the stories one after another in a single buffer with one quote position index over
+ * the lot.  A table of where each story starts turns a position in the buffer back into a
+ * story and an offset in it, so a found quote is one lookup no matter how many stories
+ * there are.  A quote that runs from the end of one story into the start of the next is
+ * marked in both.
+ */
+public class Corpus {
+	/** The stories in the order they are in the buffer */
+	private final Story[] stories;
+	/** Where each story starts in the buffer, with the buffer's length at the end */
+	private final int[] starts;
+	/** Where every quote in the buffer starts */
+	private final QuotePositionIndex quoteIndex;
+
+	/**
+	 * Joins the stories and indexes them
+	 * @param stories The stories.  Their text has to be loaded
+	 * @param codec The codec for the quote size to index
+	 */
+	public Corpus(Story[] stories, QuoteCodec codec) {
+		this.stories = stories;
+
+		starts = new int[stories.length + 1];
+
+		for (int i = 0; i < stories.length; i++) {
+			starts[i + 1] = starts[i] + stories[i].story.length();
+		}
+
+		StringBuilder buffer = new StringBuilder(starts[stories.length]);
+
+		for (Story story : stories) {
+			buffer.append(story.story);
+		}
+
+		quoteIndex = new QuotePositionIndex(buffer, codec);
+	}
+
+	/**
+	 * Finds the story a position in the buffer is in
+	 * @param position The position in the buffer
+	 * @return The index of the story
+	 */
+	public int getStoryIndex(int position) {
+		int index = Arrays.binarySearch(starts, position);
+
+		if (index < 0) {
+			// Not a story's first character, it's in the story starting before it
+			return -index - 2;
+		}
+
+		// Skip over empty stories that start at the same position
+		while (index + 1 < stories.length && starts[index + 1] == position) {
+			index++;
+		}
+
+		return index;
+	}
+
+	/**
+	 * Gets where a story starts in the buffer
+	 * @param storyIndex The index of the story
+	 * @return The position of the story's first character
+	 */
+	public int getStart(int storyIndex) {
+		return starts[storyIndex];
+	}
+
+	/**
+	 * Marks every place a quote appears in the stories' BitSets
+	 * @param quote The packed quote
+	 * @return The number of places the quote appears
+	 */
+	public int markFound(long quote) {
+		return markFound(quote, null);
+	}
+
+	/**
+	 * Marks every place a quote appears in the stories' BitSets and logs the ranges
+	 * that weren't already covered
+	 * @param quote The packed quote
+	 * @param log The log to add the newly covered ranges to.  Null to not log them
+	 * @return The number of places the quote appears
+	 */
+	public int markFound(long quote, CoverageLog log) {
+		int key = quoteIndex.find(quote);
+
+		if (key == -1) {
+			return 0;
+		}
+
+		for (int i = quoteIndex.getFirst(key); i < quoteIndex.getEnd(key); i++) {
+			int position = quoteIndex.getPosition(i);
+			int end = position + quoteIndex.getQuoteSize();
+
+			// Mark the part in each story the quote covers
+			for (int storyIndex = getStoryIndex(position); position < end; storyIndex++) {
+				int storyEnd = Math.min(end, starts[storyIndex + 1]);
+				int from = position - starts[storyIndex];
+				int to = storyEnd - starts[storyIndex];
+				if (stories[storyIndex].markFound(from, to) != 0 && log != null) {
+					log.add(storyIndex, from, to);
+				}
+				position = storyEnd;
+			}
+		}
+
+		return quoteIndex.getEnd(key) - quoteIndex.getFirst(key);
+	}
+}
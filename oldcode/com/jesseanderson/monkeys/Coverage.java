@@ -0,0 +1,293 @@
+package com.jesseanderson.monkeys;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamConstants;
+import java.util.BitSet;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Keeps track of which characters of each story the monkeys have typed.  Loads the stories
+ * and their BitSets, marks found quotes and writes out the coverage log, images and totals.
+ * Shared by MonkeyDriver and LocalMonkeyEngine so both produce the same files.
+ */
+public class Coverage {
+	/** The file system the stories and their files are on */
+	private final FileSystem fileSystem;
+	/** Stories loaded in memory */
+	private Story[] stories;
+	/** The stories joined together and indexed by quote */
+	private Corpus corpus;
+	/** The log of what each iteration covered since the BitSet files were last written */
+	private CoverageLog log;
+
+	/**
+	 * Creates the coverage.  Nothing is loaded until load is called
+	 * @param fileSystem The file system the stories and their files are on
+	 */
+	public Coverage(FileSystem fileSystem) {
+		this.fileSystem = fileSystem;
+	}
+
+	/**
+	 * Loads stories from text and loads their corresponding BitSet objects.  Fails rather
+	 * than carrying on without a story's BitSet
+	 */
+	public void load() throws IOException {
+		// Load stories into memory, to check for found strings
+		Path storiesBase = new Path(MonkeyUtils.prefix + Story.STORIES_DIRECTORY);
+		FileStatus[] storiesList = fileSystem.listStatus(storiesBase, new PathFilter() {
+			@Override
+			public boolean accept(Path arg0) {
+				return arg0.getName().endsWith(Story.STORY_EXTENSION) && !arg0.getName().contains("total");
+			}
+		});
+
+		stories = new Story[storiesList.length];
+
+		for (int i = 0; i < storiesList.length; i++) {
+			stories[i] = new Story();
+			stories[i].name = storiesList[i].getPath().getName();
+			stories[i].name = stories[i].name.substring(0, stories[i].name.indexOf("."));
+
+			StringBuilder builder = MonkeyUtils.readEntireFile(storiesList[i].getPath());
+			stories[i].story = builder.toString();
+		}
+
+		corpus = new Corpus(stories, new QuoteCodec(MonkeyUtils.QUOTE_SIZE));
+
+		// Finish any snapshot the last run died in the middle of
+		for (Story story : stories) {
+			CoverageLog.recover(fileSystem, new Path(story.getBitSetFile()));
+		}
+
+		// Load story bit sets into memory
+		FileStatus[] foundInStoriesList = fileSystem.listStatus(storiesBase, new PathFilter() {
+			@Override
+			public boolean accept(Path arg0) {
+				return arg0.getName().endsWith(Story.BIT_SET_EXTENSION);
+			}
+		});
+
+		MonkeyUtils.logger.info("Found " + storiesList.length + " stories and " + foundInStoriesList.length + " bit sets. In path \"" +
+				storiesBase.toUri() + "\"");
+
+		if (foundInStoriesList.length == 0) {
+			// Create new bit set files
+			for (int i = 0; i < storiesList.length; i++) {
+				FSDataOutputStream outputStream = fileSystem.create(new Path(stories[i].getBitSetFile()), true);
+				outputStream.close();
+
+				stories[i].bitSet = new CoverageBitmap();
+			}
+
+			// Anything logged belonged to the BitSets that are gone
+			log = new CoverageLog(fileSystem, stories);
+			log.clear();
+		} else if (foundInStoriesList.length == storiesList.length) {
+			// Load in existing bit set files
+			for (int i = 0; i < storiesList.length; i++) {
+				Path bitSetPath = new Path(stories[i].getBitSetFile());
+
+				long length = fileSystem.getFileStatus(bitSetPath).getLen();
+
+				if (length != 0) {
+					FSDataInputStream inputStream = fileSystem.open(bitSetPath);
+
+					try {
+						stories[i].bitSet = readBitmap(inputStream, length);
+					} catch (IOException e) {
+						throw new IOException("Unable to read BitSet file " + bitSetPath, e);
+					} finally {
+						inputStream.close();
+					}
+				} else {
+					stories[i].bitSet = new CoverageBitmap();
+				}
+			}
+
+			// Bring the snapshot up to date
+			log = new CoverageLog(fileSystem, stories);
+			log.replay();
+		} else {
+			MonkeyUtils.logger.fatal("Story and bit set sizes do not match up!");
+			throw new IOException("Found " + storiesList.length + " stories but " + foundInStoriesList.length + " bit sets");
+		}
+	}
+
+	/**
+	 * Updates the BitSets of the stories the quotes are in
+	 * @param foundQuotes The packed quotes the monkeys typed that are in the works
+	 */
+	public void markFound(QuoteArrayWritable foundQuotes) {
+		for (int quoteIndex = 0; quoteIndex < foundQuotes.size(); quoteIndex++) {
+			corpus.markFound(foundQuotes.get(quoteIndex), log);
+		}
+	}
+
+	/**
+	 * Logs what was newly covered and writes out the images and html table file, keeping a
+	 * copy of them with the iteration's output.  The BitSets are only written out and copied
+	 * when a snapshot is due
+	 * @param recordDirectory The iteration's output directory
+	 * @throws IOException If the coverage couldn't be logged or written.  What wasn't logged is
+	 * kept for the next save
+	 */
+	public void save(Path recordDirectory) throws IOException {
+		ImageGenerator generator = new ImageGenerator();
+
+		int ranges = log.getPending();
+		Path deltaPath = log.write();
+		copyFile(deltaPath, new Path(recordDirectory.toString() + "/" + deltaPath.getName()));
+
+		MonkeyUtils.logger.info("Logged " + ranges + " newly covered ranges to " + deltaPath.getName());
+
+		boolean snapshot = log.isSnapshotDue();
+
+		Path totalsPath = new Path(MonkeyUtils.prefix + Story.STORIES_DIRECTORY + "totals.xml");
+		FSDataOutputStream totalsOutputStream = fileSystem.create(totalsPath, true);
+
+		totalsOutputStream.writeBytes("<table><tr><td>Title</td><td>Percent Found</td><td>Total Chars. Found</td><td>Total Chars.</td><td>Chars. Left</td></tr>");
+
+		for (int i = 0; i < stories.length; i++) {
+			String baseToPath = recordDirectory.toString() + "/" + stories[i].name;
+
+			if (snapshot) {
+				// Output new bitmaps to save overall state, keeping the old one until the new one is complete
+				Path bitSetPath = new Path(stories[i].getBitSetFile());
+				FSDataOutputStream outputStream = fileSystem.create(CoverageLog.getTempPath(bitSetPath), true);
+				stories[i].bitSet.write(outputStream);
+				outputStream.close();
+				CoverageLog.moveIntoPlace(fileSystem, bitSetPath);
+
+				// Output to recordDirectory to keep a record of the BitSet at that point
+				copyFile(new Path(stories[i].getBitSetFile()), new Path(baseToPath + Story.BIT_SET_EXTENSION));
+			}
+
+			// Output image of BitSet
+			FSDataOutputStream outputStream = fileSystem.create(new Path(stories[i].getImageFile()), true);
+			generator.createImage(stories[i].bitSet, stories[i].story.length(), outputStream);
+			outputStream.close();
+
+			// Output to recordDirectory to keep a record of the image at that point
+			Path imagePath = new Path(baseToPath + Story.IMAGE_EXTENSION);
+			copyFile(new Path(stories[i].getImageFile()), imagePath);
+
+			// Copy current to local filesystem
+			fileSystem.copyToLocalFile(imagePath, new Path("currentstories/" + imagePath.getName()));
+
+			CoverageCounters counters = stories[i].getCounters();
+			int found = counters.getFound();
+			int storySize = counters.getSize();
+			float percentDone = (((float)found / (float) storySize) * 100f);
+			int charactersLeft = counters.getLeft();
+
+			String htmlTotalOuput = String.format( "<tr><td>%s</td><td>%.3f%%</td><td>%,d</td><td>%,d</td><td>%d</td></tr>", stories[i].name,
+					percentDone, found, storySize, charactersLeft);
+			totalsOutputStream.writeBytes(htmlTotalOuput + "\n");
+
+			String loggerTotalOuput = String.format( "For %s found so far %.3f%% Found: %,d Total: %,d Left: %,d", stories[i].name,
+					percentDone, found, storySize, charactersLeft);
+			MonkeyUtils.logger.info(loggerTotalOuput);
+
+			if (counters.getGaps() != 0) {
+				MonkeyUtils.logger.info(String.format("For %s gaps left %,d longest at least %,d by length %s", stories[i].name,
+						counters.getGaps(), 1L << counters.getLongestBucket(), counters.describeGaps()));
+			}
+		}
+
+		totalsOutputStream.writeBytes("</table>");
+
+		if (snapshot) {
+			// Only once every BitSet is written can the deltas go
+			log.snapshotWritten();
+			MonkeyUtils.logger.info("Wrote coverage snapshot");
+		}
+
+		totalsOutputStream.close();
+
+		// Copy totals file
+		copyFile(totalsPath, new Path(recordDirectory.toString() + totalsPath.getName()));
+		fileSystem.copyToLocalFile(totalsPath, new Path("currentstories/" + totalsPath.getName()));
+	}
+
+	/**
+	 * Reads a story's bitmap.  Files from before the bitmap hold a serialized BitSet,
+	 * which starts with the serialization magic number, and are converted.  An empty
+	 * bitmap is a single byte, too short to hold the magic number
+	 * @param inputStream The stream to read from, at the start of the file
+	 * @param length The length of the file
+	 * @return The bitmap
+	 */
+	private CoverageBitmap readBitmap(FSDataInputStream inputStream, long length) throws IOException {
+		short magic = 0;
+
+		if (length >= 2) {
+			magic = inputStream.readShort();
+			inputStream.seek(0);
+		}
+
+		if (magic == ObjectStreamConstants.STREAM_MAGIC) {
+			ObjectInputStream s = new ObjectInputStream(inputStream);
+
+			try {
+				return CoverageBitmap.valueOf((BitSet) s.readObject());
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Unable to read the old BitSet", e);
+			}
+		}
+
+		CoverageBitmap bitmap = new CoverageBitmap();
+		bitmap.readFields(inputStream);
+
+		return bitmap;
+	}
+
+	/**
+	 * Gets the stories
+	 * @return The stories with their BitSets
+	 */
+	public Story[] getStories() {
+		return stories;
+	}
+
+	/**
+	 * Copies a file from one path to another
+	 * @param from The source file
+	 * @param to The destination file
+	 */
+	private void copyFile(Path from, Path to) throws IOException {
+		FSDataInputStream inputStream = fileSystem.open(from);
+		FSDataOutputStream outputStream = fileSystem.create(to, true);
+
+		int read;
+		byte[] buffer = new byte[4096];
+
+		while ((read = inputStream.read(buffer)) != -1) {
+			outputStream.write(buffer, 0, read);
+		}
+
+		inputStream.close();
+		outputStream.close();
+	}
+}
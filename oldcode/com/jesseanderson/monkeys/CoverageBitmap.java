@@ -0,0 +1,778 @@
+package com.jesseanderson.monkeys;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The characters of a story that have been found, kept like a Roaring bitmap.  The story is
+ * cut into chunks of 65,536 characters and each chunk that has anything found gets its own
+ * container.  Found quotes come in runs so a container is a sorted list of runs, until a
+ * chunk is so scattered that 1,024 words of bits take less room.  Setting a range only
+ * touches the containers it covers, the number of characters found is kept as they're set
+ * and a story that is mostly found is a handful of runs on disk.
+ */
+public class CoverageBitmap implements Writable {
+	/** The number of low bits of a position that are the offset in its chunk */
+	private static final int CHUNK_BITS = 16;
+	/** The number of characters in a chunk */
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	/** A run container with more runs than this takes more room than a bitmap */
+	private static final int MAX_RUNS = 1024;
+	/** Written before a container of runs */
+	private static final byte RUNS = 0;
+	/** Written before a container of bits */
+	private static final byte BITMAP = 1;
+
+	/** The containers by chunk.  Null for chunks with nothing found */
+	private Container[] containers = new Container[0];
+	/** The number of characters found */
+	private int cardinality;
+
+	/**
+	 * Creates an empty bitmap
+	 */
+	public CoverageBitmap() {
+	}
+
+	/**
+	 * Creates a copy of another bitmap
+	 * @param other The bitmap to copy
+	 */
+	public CoverageBitmap(CoverageBitmap other) {
+		containers = new Container[other.containers.length];
+
+		for (int i = 0; i < containers.length; i++) {
+			if (other.containers[i] != null) {
+				containers[i] = other.containers[i].copy();
+			}
+		}
+
+		cardinality = other.cardinality;
+	}
+
+	/**
+	 * Creates a bitmap with the same bits as a BitSet.  Used to read BitSet files written
+	 * before the bitmap
+	 * @param bitSet The BitSet
+	 * @return The bitmap
+	 */
+	public static CoverageBitmap valueOf(BitSet bitSet) {
+		CoverageBitmap bitmap = new CoverageBitmap();
+
+		for (int start = bitSet.nextSetBit(0); start >= 0; start = bitSet.nextSetBit(bitSet.nextClearBit(start))) {
+			bitmap.set(start, bitSet.nextClearBit(start));
+		}
+
+		return bitmap;
+	}
+
+	/**
+	 * Marks a range as found
+	 * @param from The first character
+	 * @param to One past the last character
+	 * @return The number of characters that weren't found before
+	 */
+	public int set(int from, int to) {
+		if (from < 0 || from > to) {
+			throw new IndexOutOfBoundsException("from:" + from + " to:" + to);
+		}
+
+		if (from == to) {
+			return 0;
+		}
+
+		int lastChunk = (to - 1) >>> CHUNK_BITS;
+
+		if (lastChunk >= containers.length) {
+			containers = Arrays.copyOf(containers, lastChunk + 1);
+		}
+
+		int added = 0;
+
+		for (int chunk = from >>> CHUNK_BITS; chunk <= lastChunk; chunk++) {
+			int chunkStart = chunk << CHUNK_BITS;
+			int low = Math.max(from, chunkStart) - chunkStart;
+			int high = Math.min(to - chunkStart, CHUNK_SIZE);
+
+			Container container = containers[chunk];
+
+			if (container == null) {
+				container = new RunContainer();
+			}
+
+			added += container.set(low, high);
+			containers[chunk] = container.optimize();
+		}
+
+		cardinality += added;
+
+		return added;
+	}
+
+	/**
+	 * Marks one character as found
+	 * @param index The character
+	 */
+	public void set(int index) {
+		set(index, index + 1);
+	}
+
+	/**
+	 * Checks if a character was found
+	 * @param index The character
+	 * @return True if it was found
+	 */
+	public boolean get(int index) {
+		int chunk = index >>> CHUNK_BITS;
+
+		return chunk < containers.length && containers[chunk] != null && containers[chunk].get(index & (CHUNK_SIZE - 1));
+	}
+
+	/**
+	 * Finds the next character that was found
+	 * @param from The character to start at
+	 * @return The first found character at or after from.  -1 if there are none
+	 */
+	public int nextSetBit(int from) {
+		int low = from & (CHUNK_SIZE - 1);
+
+		for (int chunk = from >>> CHUNK_BITS; chunk < containers.length; chunk++) {
+			if (containers[chunk] != null) {
+				int next = containers[chunk].nextSetBit(low);
+
+				if (next >= 0) {
+					return (chunk << CHUNK_BITS) + next;
+				}
+			}
+
+			low = 0;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Finds the next character that hasn't been found
+	 * @param from The character to start at
+	 * @return The first character at or after from that hasn't been found
+	 */
+	public int nextClearBit(int from) {
+		int low = from & (CHUNK_SIZE - 1);
+
+		for (int chunk = from >>> CHUNK_BITS; chunk < containers.length; chunk++) {
+			if (containers[chunk] == null) {
+				return (chunk << CHUNK_BITS) + low;
+			}
+
+			int next = containers[chunk].nextClearBit(low);
+
+			if (next < CHUNK_SIZE) {
+				return (chunk << CHUNK_BITS) + next;
+			}
+
+			low = 0;
+		}
+
+		return Math.max(from, containers.length << CHUNK_BITS);
+	}
+
+	/**
+	 * Finds the last character that was found before a position
+	 * @param from The character to start at, going down
+	 * @return The last found character at or before from.  -1 if there are none
+	 */
+	public int previousSetBit(int from) {
+		if (from < 0) {
+			return -1;
+		}
+
+		int chunk = from >>> CHUNK_BITS;
+		int low = from & (CHUNK_SIZE - 1);
+
+		if (chunk >= containers.length) {
+			chunk = containers.length - 1;
+			low = CHUNK_SIZE - 1;
+		}
+
+		for (; chunk >= 0; chunk--) {
+			if (containers[chunk] != null) {
+				int previous = containers[chunk].previousSetBit(low);
+
+				if (previous >= 0) {
+					return (chunk << CHUNK_BITS) + previous;
+				}
+			}
+
+			low = CHUNK_SIZE - 1;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Gets the number of characters found.  Kept up to date as ranges are set
+	 * @return The number of characters found
+	 */
+	public int cardinality() {
+		return cardinality;
+	}
+
+	/**
+	 * Checks if nothing was found
+	 * @return True if no characters were found
+	 */
+	public boolean isEmpty() {
+		return cardinality == 0;
+	}
+
+	/**
+	 * Gets the number of runs of found characters.  A run across a chunk boundary is one run
+	 * @return The number of runs
+	 */
+	public int getRuns() {
+		int runs = 0;
+		boolean previousEndSet = false;
+
+		for (int chunk = 0; chunk < containers.length; chunk++) {
+			Container container = containers[chunk];
+
+			if (container == null) {
+				previousEndSet = false;
+				continue;
+			}
+
+			runs += container.runs();
+
+			if (previousEndSet && container.get(0)) {
+				runs--;
+			}
+
+			previousEndSet = container.get(CHUNK_SIZE - 1);
+		}
+
+		return runs;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		int used = 0;
+
+		for (Container container : containers) {
+			if (container != null) {
+				used++;
+			}
+		}
+
+		WritableUtils.writeVInt(out, used);
+
+		for (int chunk = 0; chunk < containers.length; chunk++) {
+			Container container = containers[chunk];
+
+			if (container == null) {
+				continue;
+			}
+
+			WritableUtils.writeVInt(out, chunk);
+
+			int runs = container.runs();
+
+			if (runs <= MAX_RUNS) {
+				// Each run is the gap since the last one and its length
+				out.writeByte(RUNS);
+				WritableUtils.writeVInt(out, runs);
+
+				int previousEnd = 0;
+
+				for (int start = container.nextSetBit(0); start >= 0; start = container.nextSetBit(previousEnd)) {
+					int end = container.nextClearBit(start);
+
+					WritableUtils.writeVInt(out, start - previousEnd);
+					WritableUtils.writeVInt(out, end - start);
+
+					previousEnd = end;
+				}
+			} else {
+				out.writeByte(BITMAP);
+
+				for (long word : container.toBitmap().words) {
+					out.writeLong(word);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		int used = WritableUtils.readVInt(in);
+
+		containers = new Container[0];
+		cardinality = 0;
+
+		for (int i = 0; i < used; i++) {
+			int chunk = WritableUtils.readVInt(in);
+			Container container;
+
+			if (in.readByte() == RUNS) {
+				RunContainer runContainer = new RunContainer();
+				int runs = WritableUtils.readVInt(in);
+				int previousEnd = 0;
+
+				for (int j = 0; j < runs; j++) {
+					int start = previousEnd + WritableUtils.readVInt(in);
+					previousEnd = start + WritableUtils.readVInt(in);
+
+					runContainer.set(start, previousEnd);
+				}
+
+				container = runContainer;
+			} else {
+				BitmapContainer bitmapContainer = new BitmapContainer();
+
+				for (int j = 0; j < bitmapContainer.words.length; j++) {
+					bitmapContainer.words[j] = in.readLong();
+					bitmapContainer.cardinality += Long.bitCount(bitmapContainer.words[j]);
+				}
+
+				container = bitmapContainer;
+			}
+
+			if (chunk >= containers.length) {
+				containers = Arrays.copyOf(containers, chunk + 1);
+			}
+
+			containers[chunk] = container;
+			cardinality += container.cardinality();
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof CoverageBitmap)) {
+			return false;
+		}
+
+		CoverageBitmap other = (CoverageBitmap) obj;
+
+		if (cardinality != other.cardinality) {
+			return false;
+		}
+
+		// Same runs in the same places
+		for (int start = nextSetBit(0); start >= 0; start = nextSetBit(nextClearBit(start))) {
+			if (other.nextSetBit(start) != start || other.nextClearBit(start) != nextClearBit(start)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = cardinality;
+
+		for (int start = nextSetBit(0); start >= 0; start = nextSetBit(nextClearBit(start))) {
+			hash = (hash * 31) + start;
+		}
+
+		return hash;
+	}
+
+	/**
+	 * Lists the found characters the way a BitSet does
+	 * @return The found characters in braces
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("{");
+
+		for (int index = nextSetBit(0); index >= 0; index = nextSetBit(index + 1)) {
+			if (builder.length() > 1) {
+				builder.append(", ");
+			}
+
+			builder.append(index);
+		}
+
+		return builder.append("}").toString();
+	}
+
+	/**
+	 * The found characters in one chunk.  Positions are offsets in the chunk
+	 */
+	private static abstract class Container {
+		/**
+		 * Marks a range in the chunk as found
+		 * @param from The first offset
+		 * @param to One past the last offset, at most CHUNK_SIZE
+		 * @return The number of offsets that weren't found before
+		 */
+		abstract int set(int from, int to);
+
+		/**
+		 * Checks if an offset was found
+		 * @param index The offset
+		 * @return True if it was found
+		 */
+		abstract boolean get(int index);
+
+		/**
+		 * Finds the next found offset
+		 * @param from The offset to start at
+		 * @return The offset or -1 if there are none
+		 */
+		abstract int nextSetBit(int from);
+
+		/**
+		 * Finds the next offset that hasn't been found
+		 * @param from The offset to start at
+		 * @return The offset or CHUNK_SIZE if there are none
+		 */
+		abstract int nextClearBit(int from);
+
+		/**
+		 * Finds the last found offset at or before another
+		 * @param from The offset to start at, going down
+		 * @return The offset or -1 if there are none
+		 */
+		abstract int previousSetBit(int from);
+
+		/**
+		 * Gets the number of found offsets
+		 * @return The number of found offsets
+		 */
+		abstract int cardinality();
+
+		/**
+		 * Gets the number of runs of found offsets
+		 * @return The number of runs
+		 */
+		abstract int runs();
+
+		/**
+		 * Copies the container
+		 * @return The copy
+		 */
+		abstract Container copy();
+
+		/**
+		 * Gets the container as bits
+		 * @return This container or a copy of it as bits
+		 */
+		BitmapContainer toBitmap() {
+			BitmapContainer bitmap = new BitmapContainer();
+
+			for (int start = nextSetBit(0); start >= 0; start = nextSetBit(nextClearBit(start))) {
+				bitmap.set(start, nextClearBit(start));
+			}
+
+			return bitmap;
+		}
+
+		/**
+		 * Switches to whichever kind of container takes less room
+		 * @return This container or the one to replace it with
+		 */
+		abstract Container optimize();
+	}
+
+	/**
+	 * The found offsets as a sorted list of runs that don't touch
+	 */
+	private static class RunContainer extends Container {
+		/** The runs, a start and one past the end each */
+		private int[] runs = new int[4];
+		/** The number of runs */
+		private int size;
+		/** The number of found offsets */
+		private int cardinality;
+
+		/**
+		 * Finds the first run that ends at or after a value
+		 * @param value The value
+		 * @return The index of the run or size if there isn't one
+		 */
+		private int firstEndingAtOrAfter(int value) {
+			int low = 0;
+			int high = size;
+
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+
+				if (runs[(middle * 2) + 1] < value) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+
+			return low;
+		}
+
+		@Override
+		int set(int from, int to) {
+			// Every run touching or overlapping the range becomes one run with it
+			int first = firstEndingAtOrAfter(from);
+			int last = first;
+			int start = from;
+			int end = to;
+			int covered = 0;
+
+			while (last < size && runs[last * 2] <= to) {
+				start = Math.min(start, runs[last * 2]);
+				end = Math.max(end, runs[(last * 2) + 1]);
+				covered += runs[(last * 2) + 1] - runs[last * 2];
+				last++;
+			}
+
+			int added = (end - start) - covered;
+
+			if (added == 0) {
+				return 0;
+			}
+
+			int merged = last - first;
+
+			if (merged == 0) {
+				if ((size + 1) * 2 > runs.length) {
+					runs = Arrays.copyOf(runs, runs.length * 2);
+				}
+
+				System.arraycopy(runs, first * 2, runs, (first + 1) * 2, (size - first) * 2);
+				size++;
+			} else if (merged > 1) {
+				System.arraycopy(runs, last * 2, runs, (first + 1) * 2, (size - last) * 2);
+				size -= merged - 1;
+			}
+
+			runs[first * 2] = start;
+			runs[(first * 2) + 1] = end;
+			cardinality += added;
+
+			return added;
+		}
+
+		@Override
+		boolean get(int index) {
+			int run = firstEndingAtOrAfter(index + 1);
+
+			return run < size && runs[run * 2] <= index;
+		}
+
+		@Override
+		int nextSetBit(int from) {
+			int run = firstEndingAtOrAfter(from + 1);
+
+			return run < size ? Math.max(from, runs[run * 2]) : -1;
+		}
+
+		@Override
+		int nextClearBit(int from) {
+			int run = firstEndingAtOrAfter(from + 1);
+
+			return run < size && runs[run * 2] <= from ? runs[(run * 2) + 1] : from;
+		}
+
+		@Override
+		int previousSetBit(int from) {
+			int run = firstEndingAtOrAfter(from + 1);
+
+			if (run < size && runs[run * 2] <= from) {
+				return from;
+			}
+
+			return run > 0 ? runs[((run - 1) * 2) + 1] - 1 : -1;
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		int runs() {
+			return size;
+		}
+
+		@Override
+		Container copy() {
+			RunContainer copy = new RunContainer();
+			copy.runs = Arrays.copyOf(runs, runs.length);
+			copy.size = size;
+			copy.cardinality = cardinality;
+
+			return copy;
+		}
+
+		@Override
+		Container optimize() {
+			return size > MAX_RUNS ? toBitmap() : this;
+		}
+	}
+
+	/**
+	 * The found offsets as one bit each
+	 */
+	private static class BitmapContainer extends Container {
+		/** The bits */
+		private final long[] words = new long[CHUNK_SIZE / 64];
+		/** The number of found offsets */
+		private int cardinality;
+		/** The number of sets since the runs were last counted */
+		private int sets;
+
+		@Override
+		int set(int from, int to) {
+			int firstWord = from >>> 6;
+			int lastWord = (to - 1) >>> 6;
+			int before = cardinality;
+
+			for (int i = firstWord; i <= lastWord; i++) {
+				long mask = -1L;
+
+				if (i == firstWord) {
+					mask &= -1L << from;
+				}
+
+				if (i == lastWord) {
+					mask &= -1L >>> -to;
+				}
+
+				cardinality += Long.bitCount(mask & ~words[i]);
+				words[i] |= mask;
+			}
+
+			return cardinality - before;
+		}
+
+		@Override
+		boolean get(int index) {
+			return (words[index >>> 6] & (1L << index)) != 0;
+		}
+
+		@Override
+		int nextSetBit(int from) {
+			if (from >= CHUNK_SIZE) {
+				return -1;
+			}
+
+			int i = from >>> 6;
+			long word = words[i] & (-1L << from);
+
+			while (word == 0) {
+				if (++i == words.length) {
+					return -1;
+				}
+
+				word = words[i];
+			}
+
+			return (i * 64) + Long.numberOfTrailingZeros(word);
+		}
+
+		@Override
+		int nextClearBit(int from) {
+			if (from >= CHUNK_SIZE) {
+				return CHUNK_SIZE;
+			}
+
+			int i = from >>> 6;
+			long word = ~words[i] & (-1L << from);
+
+			while (word == 0) {
+				if (++i == words.length) {
+					return CHUNK_SIZE;
+				}
+
+				word = ~words[i];
+			}
+
+			return (i * 64) + Long.numberOfTrailingZeros(word);
+		}
+
+		@Override
+		int previousSetBit(int from) {
+			int i = from >>> 6;
+			long word = words[i] & (-1L >>> (63 - (from & 63)));
+
+			while (word == 0) {
+				if (--i < 0) {
+					return -1;
+				}
+
+				word = words[i];
+			}
+
+			return (i * 64) + 63 - Long.numberOfLeadingZeros(word);
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		int runs() {
+			int runs = 0;
+			long previousTop = 0;
+
+			// A run starts at each set bit whose lower neighbor is clear
+			for (long word : words) {
+				runs += Long.bitCount(word & ~((word << 1) | previousTop));
+				previousTop = word >>> 63;
+			}
+
+			return runs;
+		}
+
+		@Override
+		Container copy() {
+			BitmapContainer copy = new BitmapContainer();
+			System.arraycopy(words, 0, copy.words, 0, words.length);
+			copy.cardinality = cardinality;
+
+			return copy;
+		}
+
+		@Override
+		BitmapContainer toBitmap() {
+			return this;
+		}
+
+		@Override
+		Container optimize() {
+			// Filling gaps joins runs, so every so often see if runs are smaller again
+			if (++sets % 64 != 0 || runs() > MAX_RUNS / 2) {
+				return this;
+			}
+
+			RunContainer runContainer = new RunContainer();
+
+			for (int start = nextSetBit(0); start >= 0; start = nextSetBit(nextClearBit(start))) {
+				runContainer.set(start, nextClearBit(start));
+			}
+
+			return runContainer;
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package com.jesseanderson.monkeys;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Counts of a story's coverage kept up to date as ranges are marked instead of counted
+ * again every iteration.  Besides the characters found and left there is a histogram of
+ * the gaps still to be found, bucketed by powers of 2.  Marking a range only looks at the
+ * gaps it touches: each one is taken out and whatever is left of it on either side goes back in.
+ */
+public class CoverageCounters {
+	/** The number of buckets in the histogram, one for each power of 2 */
+	public static final int BUCKETS = 32;
+
+	/** The number of characters in the story */
+	private final int size;
+	/** The number of characters found */
+	private int found;
+	/** The number of gaps by bucket.  Bucket b has the gaps of length 2^b to 2^(b + 1) - 1 */
+	private final int[] histogram = new int[BUCKETS];
+	/** The number of gaps */
+	private int gaps;
+
+	/**
+	 * Counts what's already been found
+	 * @param bitmap The story's bitmap
+	 * @param size The number of characters in the story
+	 */
+	public CoverageCounters(CoverageBitmap bitmap, int size) {
+		this.size = size;
+
+		int left = 0;
+
+		for (int start = bitmap.nextClearBit(0); start < size; start = bitmap.nextClearBit(start)) {
+			int end = getGapEnd(bitmap, start);
+
+			addGap(end - start);
+			left += end - start;
+			start = end;
+		}
+
+		found = size - left;
+	}
+
+	/**
+	 * Marks a range of the story as found and updates the counts
+	 * @param bitmap The story's bitmap.  It mustn't change other than through here
+	 * @param from The first character
+	 * @param to One past the last character
+	 * @return The number of characters that weren't found before
+	 */
+	public int set(CoverageBitmap bitmap, int from, int to) {
+		for (int start = bitmap.nextClearBit(from); start < to && start < size; start = bitmap.nextClearBit(start)) {
+			// The gap may start before the range and end after it
+			int gapStart = start == from ? bitmap.previousSetBit(from - 1) + 1 : start;
+			int gapEnd = getGapEnd(bitmap, start);
+
+			removeGap(gapEnd - gapStart);
+
+			if (gapStart < from) {
+				addGap(from - gapStart);
+			}
+
+			if (gapEnd > to) {
+				addGap(gapEnd - to);
+			}
+
+			start = gapEnd;
+		}
+
+		int added = bitmap.set(from, to);
+		found += added;
+
+		return added;
+	}
+
+	/**
+	 * Gets where the gap starting at a character ends
+	 * @param bitmap The story's bitmap
+	 * @param start The first character of the gap
+	 * @return One past the last character of the gap
+	 */
+	private int getGapEnd(CoverageBitmap bitmap, int start) {
+		int end = bitmap.nextSetBit(start);
+
+		return end < 0 || end > size ? size : end;
+	}
+
+	/**
+	 * Gets the bucket for a gap
+	 * @param length The gap's length
+	 * @return The bucket
+	 */
+	private static int getBucket(int length) {
+		return 31 - Integer.numberOfLeadingZeros(length);
+	}
+
+	/**
+	 * Counts a gap
+	 * @param length The gap's length
+	 */
+	private void addGap(int length) {
+		histogram[getBucket(length)]++;
+		gaps++;
+	}
+
+	/**
+	 * Stops counting a gap
+	 * @param length The gap's length
+	 */
+	private void removeGap(int length) {
+		histogram[getBucket(length)]--;
+		gaps--;
+	}
+
+	/**
+	 * Gets the number of characters found
+	 * @return The number of characters found
+	 */
+	public int getFound() {
+		return found;
+	}
+
+	/**
+	 * Gets the number of characters left to find
+	 * @return The number of characters left
+	 */
+	public int getLeft() {
+		return size - found;
+	}
+
+	/**
+	 * Gets the number of characters in the story
+	 * @return The number of characters
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of gaps left to find
+	 * @return The number of gaps
+	 */
+	public int getGaps() {
+		return gaps;
+	}
+
+	/**
+	 * Gets the number of gaps in a bucket
+	 * @param bucket The bucket.  It has the gaps of length 2^bucket to 2^(bucket + 1) - 1
+	 * @return The number of gaps
+	 */
+	public int getGaps(int bucket) {
+		return histogram[bucket];
+	}
+
+	/**
+	 * Gets the bucket with the longest gaps
+	 * @return The bucket or -1 if everything has been found
+	 */
+	public int getLongestBucket() {
+		for (int bucket = BUCKETS - 1; bucket >= 0; bucket--) {
+			if (histogram[bucket] != 0) {
+				return bucket;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Describes the histogram for the logs
+	 * @return Each bucket with gaps as its shortest length and the number of gaps
+	 */
+	public String describeGaps() {
+		StringBuilder builder = new StringBuilder();
+
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			if (histogram[bucket] != 0) {
+				if (builder.length() != 0) {
+					builder.append(" ");
+				}
+
+				builder.append(1L << bucket).append(":").append(histogram[bucket]);
+			}
+		}
+
+		return builder.toString();
+	}
+}
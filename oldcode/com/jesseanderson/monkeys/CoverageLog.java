@@ -0,0 +1,372 @@
+package com.jesseanderson.monkeys;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * An append only log of the ranges of the stories each iteration newly covered.  Each
+ * iteration's ranges go in their own numbered delta file, so saving costs what changed
+ * instead of the size of the works.  Every snapshotInterval deltas the full BitSet files
+ * are written as a snapshot and the deltas it includes are deleted.  Loading reads the
+ * snapshot and replays the deltas after it.  Setting a range twice does nothing, so
+ * replaying a delta the snapshot already has is harmless.
+ *
+ * A delta has the number of stories in it and for each story its name, the number of
+ * ranges and each range's start and length, all as vints.
+ *
+ * Nothing is ever overwritten in place.  Files are written under a temp name and moved into
+ * place, keeping the old copy until the new one is there, so recover can always get back a
+ * complete file if the process dies.
+ */
+public class CoverageLog {
+	/** The sub-directory of the stories directory the log is kept in */
+	public static final String LOG_DIRECTORY = "coverage/";
+	/** The file extension for a delta */
+	public static final String DELTA_EXTENSION = ".delta";
+	/** The file holding the sequence of the last delta the snapshot includes */
+	public static final String SNAPSHOT_FILE = "snapshot";
+	/** The file extension for a file being written */
+	public static final String TEMP_EXTENSION = ".tmp";
+	/** The file extension for the old copy of a file being replaced */
+	public static final String OLD_EXTENSION = ".old";
+	/** The number of deltas between snapshots */
+	public static int snapshotInterval = 100;
+
+	/** The file system the log is on */
+	private final FileSystem fileSystem;
+	/** The stories being covered */
+	private final Story[] stories;
+	/** The directory the log is kept in */
+	private final Path directory;
+
+	/** The ranges waiting to be written by story, a start and an end each */
+	private int[][] pending;
+	/** The number of ints used in each story's pending ranges */
+	private int[] pendingSizes;
+	/** The sequence the next delta is written with */
+	private long sequence;
+	/** The sequence of the last delta the snapshot includes.  -1 if there are none */
+	private long snapshotSequence = -1;
+
+	/**
+	 * Creates the log for the stories
+	 * @param fileSystem The file system the log is on
+	 * @param stories The stories being covered
+	 */
+	public CoverageLog(FileSystem fileSystem, Story[] stories) {
+		this.fileSystem = fileSystem;
+		this.stories = stories;
+
+		directory = new Path(MonkeyUtils.prefix + Story.STORIES_DIRECTORY + LOG_DIRECTORY);
+		pending = new int[stories.length][];
+		pendingSizes = new int[stories.length];
+
+		for (int i = 0; i < stories.length; i++) {
+			pending[i] = new int[16];
+		}
+	}
+
+	/**
+	 * Adds a newly covered range to the next delta
+	 * @param storyIndex The index of the story
+	 * @param start The first character covered
+	 * @param end One past the last character covered
+	 */
+	public void add(int storyIndex, int start, int end) {
+		int size = pendingSizes[storyIndex];
+
+		if (size + 2 > pending[storyIndex].length) {
+			pending[storyIndex] = Arrays.copyOf(pending[storyIndex], pending[storyIndex].length * 2);
+		}
+
+		pending[storyIndex][size] = start;
+		pending[storyIndex][size + 1] = end;
+		pendingSizes[storyIndex] = size + 2;
+	}
+
+	/**
+	 * Gets the number of ranges waiting to be written
+	 * @return The number of ranges
+	 */
+	public int getPending() {
+		int ranges = 0;
+
+		for (int size : pendingSizes) {
+			ranges += size / 2;
+		}
+
+		return ranges;
+	}
+
+	/**
+	 * Writes the waiting ranges as the next delta.  It's written under another name and
+	 * renamed so a crash never leaves half a delta.  If it fails the ranges are kept for
+	 * the next try
+	 * @return The path to the delta
+	 */
+	public Path write() throws IOException {
+		Path deltaPath = getDeltaPath(sequence);
+		Path tempPath = getTempPath(deltaPath);
+
+		int changedStories = 0;
+
+		for (int size : pendingSizes) {
+			if (size != 0) {
+				changedStories++;
+			}
+		}
+
+		FSDataOutputStream outputStream = fileSystem.create(tempPath, true);
+
+		try {
+			WritableUtils.writeVInt(outputStream, changedStories);
+
+			for (int i = 0; i < stories.length; i++) {
+				if (pendingSizes[i] == 0) {
+					continue;
+				}
+
+				Text.writeString(outputStream, stories[i].name);
+				WritableUtils.writeVInt(outputStream, pendingSizes[i] / 2);
+
+				for (int j = 0; j < pendingSizes[i]; j += 2) {
+					WritableUtils.writeVInt(outputStream, pending[i][j]);
+					WritableUtils.writeVInt(outputStream, pending[i][j + 1] - pending[i][j]);
+				}
+			}
+		} finally {
+			outputStream.close();
+		}
+
+		moveIntoPlace(fileSystem, deltaPath);
+
+		// The ranges are only safe to forget once the delta is in place
+		Arrays.fill(pendingSizes, 0);
+		sequence++;
+
+		return deltaPath;
+	}
+
+	/**
+	 * Checks if enough deltas have been written since the snapshot that it's time for another
+	 * @return True if a snapshot should be written
+	 */
+	public boolean isSnapshotDue() {
+		return sequence - 1 - snapshotSequence >= snapshotInterval;
+	}
+
+	/**
+	 * Records that the BitSet files now include every delta written so far and deletes those deltas.
+	 * Call once the snapshot is completely written
+	 */
+	public void snapshotWritten() throws IOException {
+		Path snapshotPath = new Path(directory, SNAPSHOT_FILE);
+
+		FSDataOutputStream outputStream = fileSystem.create(getTempPath(snapshotPath), true);
+		outputStream.writeLong(sequence - 1);
+		outputStream.close();
+
+		moveIntoPlace(fileSystem, snapshotPath);
+		snapshotSequence = sequence - 1;
+
+		for (FileStatus delta : listDeltas()) {
+			if (getSequence(delta.getPath()) <= snapshotSequence) {
+				fileSystem.delete(delta.getPath(), false);
+			}
+		}
+	}
+
+	/**
+	 * Replays the deltas written after the snapshot into the stories' BitSets.  The
+	 * BitSets have to be loaded from the snapshot first
+	 * @return The number of deltas replayed
+	 */
+	public int replay() throws IOException {
+		Path snapshotPath = new Path(directory, SNAPSHOT_FILE);
+		recover(fileSystem, snapshotPath);
+
+		if (fileSystem.exists(snapshotPath)) {
+			FSDataInputStream inputStream = fileSystem.open(snapshotPath);
+			snapshotSequence = inputStream.readLong();
+			inputStream.close();
+		}
+
+		HashMap<String, Story> storiesByName = new HashMap<String, Story>();
+
+		for (Story story : stories) {
+			storiesByName.put(story.name, story);
+		}
+
+		FileStatus[] deltas = listDeltas();
+		long[] sequences = new long[deltas.length];
+
+		for (int i = 0; i < deltas.length; i++) {
+			sequences[i] = getSequence(deltas[i].getPath());
+		}
+
+		// The names are zero padded but the file system doesn't have to list them in order
+		Arrays.sort(sequences);
+
+		sequence = snapshotSequence + 1;
+		int replayed = 0;
+
+		for (long deltaSequence : sequences) {
+			if (deltaSequence <= snapshotSequence) {
+				continue;
+			}
+
+			FSDataInputStream inputStream = fileSystem.open(getDeltaPath(deltaSequence));
+			int changedStories = WritableUtils.readVInt(inputStream);
+
+			for (int i = 0; i < changedStories; i++) {
+				Story story = storiesByName.get(Text.readString(inputStream));
+				int ranges = WritableUtils.readVInt(inputStream);
+
+				for (int j = 0; j < ranges; j++) {
+					int start = WritableUtils.readVInt(inputStream);
+					int length = WritableUtils.readVInt(inputStream);
+
+					// A story that's no longer there is skipped
+					if (story != null) {
+						story.markFound(start, start + length);
+					}
+				}
+			}
+
+			inputStream.close();
+
+			sequence = deltaSequence + 1;
+			replayed++;
+		}
+
+		MonkeyUtils.logger.info("Replayed " + replayed + " coverage deltas after snapshot " + snapshotSequence);
+
+		return replayed;
+	}
+
+	/**
+	 * Deletes the whole log.  Used when starting over without any BitSets
+	 */
+	public void clear() throws IOException {
+		fileSystem.delete(directory, true);
+
+		sequence = 0;
+		snapshotSequence = -1;
+		Arrays.fill(pendingSizes, 0);
+	}
+
+	/**
+	 * Gets the path a file is written to before it's moved into place
+	 * @param path The path to the file
+	 * @return The temp path
+	 */
+	public static Path getTempPath(Path path) {
+		return new Path(path.toString() + TEMP_EXTENSION);
+	}
+
+	/**
+	 * Moves a completely written and closed temp file into place.  The file being replaced
+	 * is only deleted once the new one is in place
+	 * @param fileSystem The file system the file is on
+	 * @param path The path to the file
+	 */
+	public static void moveIntoPlace(FileSystem fileSystem, Path path) throws IOException {
+		Path tempPath = getTempPath(path);
+		Path oldPath = new Path(path.toString() + OLD_EXTENSION);
+
+		// Renaming doesn't replace an existing file on every file system
+		fileSystem.delete(oldPath, false);
+
+		if (fileSystem.exists(path) && !fileSystem.rename(path, oldPath)) {
+			throw new IOException("Unable to rename " + path + " to " + oldPath);
+		}
+
+		if (!fileSystem.rename(tempPath, path)) {
+			throw new IOException("Unable to rename " + tempPath + " to " + path);
+		}
+
+		fileSystem.delete(oldPath, false);
+	}
+
+	/**
+	 * Puts a file back the way it was if the process died while it was being moved into place.
+	 * A temp file may only be partly written, so it's deleted
+	 * @param fileSystem The file system the file is on
+	 * @param path The path to the file
+	 */
+	public static void recover(FileSystem fileSystem, Path path) throws IOException {
+		Path oldPath = new Path(path.toString() + OLD_EXTENSION);
+
+		if (!fileSystem.exists(path) && fileSystem.exists(oldPath)) {
+			MonkeyUtils.logger.warn("Restoring " + path + " from " + oldPath);
+
+			if (!fileSystem.rename(oldPath, path)) {
+				throw new IOException("Unable to rename " + oldPath + " to " + path);
+			}
+		}
+
+		fileSystem.delete(oldPath, false);
+		fileSystem.delete(getTempPath(path), false);
+	}
+
+	/**
+	 * Lists the deltas in the log
+	 * @return The deltas, in no particular order
+	 */
+	private FileStatus[] listDeltas() throws IOException {
+		if (!fileSystem.exists(directory)) {
+			return new FileStatus[0];
+		}
+
+		return fileSystem.listStatus(directory, new PathFilter() {
+			@Override
+			public boolean accept(Path arg0) {
+				return arg0.getName().endsWith(DELTA_EXTENSION);
+			}
+		});
+	}
+
+	/**
+	 * Gets the path for a delta
+	 * @param deltaSequence The delta's sequence
+	 * @return The path
+	 */
+	private Path getDeltaPath(long deltaSequence) {
+		return new Path(directory, String.format("%020d%s", deltaSequence, DELTA_EXTENSION));
+	}
+
+	/**
+	 * Gets a delta's sequence from its path
+	 * @param deltaPath The path to the delta
+	 * @return The sequence
+	 */
+	private static long getSequence(Path deltaPath) {
+		String name = deltaPath.getName();
+
+		return Long.parseLong(name.substring(0, name.length() - DELTA_EXTENSION.length()));
+	}
+}
@@ -0,0 +1,142 @@
+package com.jesseanderson.monkeys;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * An exact, read only set of packed quotes stored as a sorted array in Eytzinger (breadth
+ * first) order.  The root is at 1 and the children of k are at 2k and 2k + 1, so the first
+ * levels of every search share the same few cache lines and each step is a compare and a
+ * shift with no unpredictable branch.  Index 0 holds the number of quotes, which makes the
+ * whole array the file format: saving writes it out and wrapping a mapped copy of the file
+ * gives a set that is ready to use without reading or parsing anything.
+ */
+public class EytzingerQuoteSet implements MappableQuoteFilter {
+	/** The number of quotes followed by the quotes in Eytzinger order */
+	private LongBuffer layout;
+	/** The number of quotes */
+	private int size;
+
+	/**
+	 * Creates an empty set for use with readFields or wrap
+	 */
+	public EytzingerQuoteSet() {
+		this(new long[0]);
+	}
+
+	/**
+	 * Creates a set from quotes in any order.  Duplicates are removed
+	 * @param quotes The packed quotes.  Sorted in place
+	 */
+	public EytzingerQuoteSet(long[] quotes) {
+		Arrays.sort(quotes);
+
+		// Remove duplicates
+		int unique = 0;
+
+		for (int i = 0; i < quotes.length; i++) {
+			if (unique == 0 || quotes[i] != quotes[unique - 1]) {
+				quotes[unique++] = quotes[i];
+			}
+		}
+
+		long[] array = new long[unique + 1];
+		array[0] = unique;
+		fill(quotes, array, 0, 1);
+
+		size = unique;
+		layout = LongBuffer.wrap(array);
+	}
+
+	/**
+	 * Copies the sorted quotes into Eytzinger order with an in order walk of the implicit tree
+	 * @param sorted The sorted quotes
+	 * @param array The array to fill
+	 * @param next The index of the next sorted quote to place
+	 * @param k The tree node to fill
+	 * @return The index of the next sorted quote to place after this subtree
+	 */
+	private static int fill(long[] sorted, long[] array, int next, int k) {
+		if (k < array.length) {
+			next = fill(sorted, array, next, 2 * k);
+			array[k] = sorted[next++];
+			next = fill(sorted, array, next, (2 * k) + 1);
+		}
+
+		return next;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		for (int i = 0; i <= size; i++) {
+			out.writeLong(layout.get(i));
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		size = (int) in.readLong();
+
+		long[] array = new long[size + 1];
+		array[0] = size;
+
+		for (int i = 1; i <= size; i++) {
+			array[i] = in.readLong();
+		}
+
+		layout = LongBuffer.wrap(array);
+	}
+
+	@Override
+	public void wrap(ByteBuffer buffer) {
+		layout = buffer.asLongBuffer();
+		size = (int) layout.get(0);
+	}
+
+	@Override
+	public boolean membershipTest(long quote) {
+		LongBuffer layout = this.layout;
+		int k = 1;
+
+		while (k <= size) {
+			// Go right when the node is smaller, the compare becomes a conditional move
+			k = (2 * k) + (layout.get(k) < quote ? 1 : 0);
+		}
+
+		// Undo the right turns taken after the last left turn, that node is the lower bound
+		k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+
+		return k != 0 && layout.get(k) == quote;
+	}
+
+	/**
+	 * Gets the number of distinct quotes in the set
+	 * @return The number of quotes
+	 */
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public long getSizeInBytes() {
+		return layout.limit() * 8L;
+	}
+}
@@ -1,9 +1,9 @@
 package com.jesseanderson.monkeys;
 
 import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.util.BitSet;
 
 import javax.imageio.ImageIO;
 
@@ -26,32 +26,25 @@ import org.apache.hadoop.fs.FSDataOutputStream;
 public class ImageGenerator {
 	/** The maximum width of the image output */
 	private static final int MAX_WIDTH = 720;
-	/** The number of trues found in the BitSet */
-	private int found;
-
 	/**
-	 * Creates an image in the output stream using the BitSet
-	 * @bitSet The BitSet containing the data to output
+	 * Creates an image in the output stream using the bitmap
+	 * @bitSet The bitmap containing the data to output
 	 * @size The size of the work being output
 	 * @outputStream The OutputStream for writing the image to
-	 * @return The number of trues in the BitSet
 	 */
-	public int createImage(BitSet bitSet, int size, FSDataOutputStream outputStream) {
-		found = 0;
-		
+	public void createImage(CoverageBitmap bitSet, int size, FSDataOutputStream outputStream) {
 		final BufferedImage img = map(bitSet, size);
 		savePNG(img, outputStream);
-		
-		return found;
 	}
 
 	/**
-	 * Creates the image output using the BitSet
-	 * @bitSet The BitSet containing the data to output
+	 * Creates the image output using the bitmap.  The image starts out white and each
+	 * run of found characters is drawn in green a row at a time
+	 * @bitSet The bitmap containing the data to output
 	 * @size The size of the work being output
 	 * @return A PNG image written to a BufferedImage
 	 */
-	private BufferedImage map(BitSet bitSet, int size) {
+	private BufferedImage map(CoverageBitmap bitSet, int size) {
 		int height = size / MAX_WIDTH;
 		
 		if (size % MAX_WIDTH != 0) {
@@ -60,25 +53,31 @@ public class ImageGenerator {
 		}
 
 		final BufferedImage res = new BufferedImage(MAX_WIDTH, height, BufferedImage.TYPE_BYTE_INDEXED);
+		Graphics2D graphics = res.createGraphics();
 		
-		// Go through every bit in the BitSet to see if the work was found
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < MAX_WIDTH; x++) {
-				int index = (y * MAX_WIDTH) + x;
-				Color color;
-				
-				if (bitSet.get(index)) {
-					// Found a hit
-					color = Color.GREEN;
-					found++;
-				} else {
-					// Hasn't found this one yet
-					color = Color.WHITE;
-				}
+		// Hasn't found these yet
+		graphics.setColor(Color.WHITE);
+		graphics.fillRect(0, 0, MAX_WIDTH, height);
+		
+		// Found hits
+		graphics.setColor(Color.GREEN);
+		int limit = height * MAX_WIDTH;
+		
+		for (int start = bitSet.nextSetBit(0); start >= 0 && start < limit; start = bitSet.nextSetBit(start)) {
+			int end = Math.min(bitSet.nextClearBit(start), limit);
+			
+			while (start < end) {
+				int y = start / MAX_WIDTH;
+				int x = start - (y * MAX_WIDTH);
+				int rowEnd = Math.min(end, (y + 1) * MAX_WIDTH);
 				
-				res.setRGB(x, y, color.getRGB());
+				graphics.fillRect(x, y, rowEnd - start, 1);
+				start = rowEnd;
 			}
 		}
+		
+		graphics.dispose();
+		
 		return res;
 	}
 
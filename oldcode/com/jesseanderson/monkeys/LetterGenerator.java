@@ -0,0 +1,122 @@
+package com.jesseanderson.monkeys;
+
+import ec.util.MersenneTwisterFast;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Types uniformly distributed lowercase letters.  Each 64 bit word from the PRNG is
+ * turned into 12 letters by treating its top 63 bits as a base 26 number.  Words that
+ * fall in the incomplete range at the top are thrown away (about 0.7% of them) so every
+ * letter is exactly equally likely.  Not thread safe, every thread needs its own.
+ */
+public class LetterGenerator {
+	/** The number of letters in the alphabet */
+	public static final int LETTERS = 26;
+	/** The offset in ASCII to get to the lowercase letters */
+	public static final byte ASCII_OFFSET = 97;
+	/** The number of letters carved out of each 64 bit word */
+	public static final int LETTERS_PER_WORD = 12;
+
+	/** 26^6, half a word's worth of letters.  Fits in an int */
+	private static final int HALF_WORD_RANGE = 308915776;
+	/** 26^12, the number of distinct 12 letter combinations */
+	private static final long WORD_RANGE = (long) HALF_WORD_RANGE * HALF_WORD_RANGE;
+	/** The largest multiple of WORD_RANGE that fits in 63 bits.  Anything at or above is rejected */
+	private static final long REJECTION_LIMIT = (Long.MAX_VALUE / WORD_RANGE) * WORD_RANGE;
+
+	/** The PRNG supplying the words */
+	private final MersenneTwisterFast random;
+	/** Letters left over from a word that didn't fit the last request */
+	private final byte[] spare = new byte[LETTERS_PER_WORD];
+	/** The position of the next unused letter in spare */
+	private int spareIndex = LETTERS_PER_WORD;
+
+	/**
+	 * Creates a LetterGenerator using its own PRNG
+	 * @param random The PRNG to take words from.  Must not be shared with another thread
+	 */
+	public LetterGenerator(MersenneTwisterFast random) {
+		this.random = random;
+	}
+
+	/**
+	 * Fills the whole array with random letters
+	 * @param letters The array to fill
+	 */
+	public void fill(byte[] letters) {
+		fill(letters, 0, letters.length);
+	}
+
+	/**
+	 * Fills part of an array with random letters
+	 * @param letters The array to fill
+	 * @param offset The first index to fill
+	 * @param length The number of letters to write
+	 */
+	public void fill(byte[] letters, int offset, int length) {
+		int end = offset + length;
+
+		// Use up anything left over from last time first
+		while (offset < end && spareIndex < LETTERS_PER_WORD) {
+			letters[offset++] = spare[spareIndex++];
+		}
+
+		// Whole words go straight into the output
+		while (end - offset >= LETTERS_PER_WORD) {
+			writeWord(letters, offset);
+			offset += LETTERS_PER_WORD;
+		}
+
+		if (offset < end) {
+			writeWord(spare, 0);
+			spareIndex = 0;
+
+			while (offset < end) {
+				letters[offset++] = spare[spareIndex++];
+			}
+		}
+	}
+
+	/**
+	 * Writes LETTERS_PER_WORD letters from one accepted word
+	 * @param letters The array to write to
+	 * @param offset The first index to write
+	 */
+	private void writeWord(byte[] letters, int offset) {
+		long word;
+
+		do {
+			word = random.nextLong() >>> 1;
+		} while (word >= REJECTION_LIMIT);
+
+		word %= WORD_RANGE;
+
+		// Split in two so the per letter math is done on ints
+		int high = (int) (word / HALF_WORD_RANGE);
+		int low = (int) (word - ((long) high * HALF_WORD_RANGE));
+
+		for (int i = 0; i < LETTERS_PER_WORD / 2; i++) {
+			int nextHigh = high / LETTERS;
+			int nextLow = low / LETTERS;
+
+			letters[offset + i] = (byte) (high - (nextHigh * LETTERS) + ASCII_OFFSET);
+			letters[offset + i + (LETTERS_PER_WORD / 2)] = (byte) (low - (nextLow * LETTERS) + ASCII_OFFSET);
+
+			high = nextHigh;
+			low = nextLow;
+		}
+	}
+}
@@ -0,0 +1,307 @@
+package com.jesseanderson.monkeys;
+
+import java.io.IOException;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Runs the whole pipeline in one JVM without a Hadoop job.  Each iteration every monkey
+ * types a batch of letters like a map call, checks its candidates like the reducer
+ * does for its key and the results go through the same Coverage as MonkeyDriver, so the
+ * output directory, BitSets, images and totals are the same.  The monkeys are split up
+ * on a ForkJoinPool and share the one filter and suffix array the JVM loads.
+ */
+public class LocalMonkeyEngine extends Configured implements Tool {
+	/** The property for the number of monkeys, one per core when it isn't set */
+	public static final String MONKEYS_PROPERTY = "monkeys.local.monkeys";
+
+	/** The number of monkeys typing each iteration, one map call's worth of letters each */
+	private int monkeys;
+
+	/** The run's id */
+	private long run;
+	/** The iteration of the run the monkeys are typing */
+	private long iteration;
+	/** Picks how many letters each monkey types an iteration */
+	private BatchSizer batchSizer = new BatchSizer(MonkeyMapper.MAP_ITERATION_SIZE);
+	/** The monkeys.  Each starts a new work unit every iteration */
+	private MonkeyMapper[] mappers;
+	/** Checks each monkey's candidates against the works */
+	private MonkeyReducer reducer = new MonkeyReducer();
+	/** The keys of each monkey's results this iteration */
+	private long[] keys;
+	/** What each monkey found this iteration.  Empty when it found nothing */
+	private QuoteArrayWritable[] results;
+	/** The time each monkey spent typing this iteration */
+	private long[] millis;
+	/** Runs the monkeys */
+	private ForkJoinPool pool;
+
+	public LocalMonkeyEngine() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates the engine
+	 * @param monkeys The number of monkeys until run reads it from the command line or configuration
+	 */
+	LocalMonkeyEngine(int monkeys) {
+		this.monkeys = monkeys;
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+		if (args.length == 1) {
+			monkeys = Integer.parseInt(args[0]);
+		} else {
+			monkeys = getConf().getInt(MONKEYS_PROPERTY, monkeys);
+		}
+		
+		if (monkeys < 1) {
+			throw new IllegalArgumentException("Need at least one monkey but have " + monkeys);
+		}
+		
+		MonkeyUtils.logger.info("Starting local engine with " + monkeys + " monkeys");
+
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmssSSS");
+		FileSystem fileSystem = FileSystem.get(URI.create(MonkeyUtils.prefix), getConf());
+
+		Coverage coverage = new Coverage(fileSystem);
+		coverage.load();
+
+		// The filter is picked with -D monkeys.filter.type the same as for the Hadoop job
+		QuoteFilter.Type filterType = MonkeyReducer.getFilterType(getConf());
+
+		batchSizer = new BatchSizer(getConf());
+
+		// The same run id types the same letters, so a run can be repeated by setting it
+		run = getConf().getLong(WorkUnit.RUN_PROPERTY, System.currentTimeMillis());
+		MonkeyUtils.logger.info("Run " + run);
+		
+		// The exact number of candidates checked so far
+		long checked = 0;
+
+		try {
+			// Run forever, the stop file allows us to exit this loop
+			while (true) {
+				long iterationGroup = checked;
+
+				String outputName = MonkeyUtils.prefix + "output/" + String.format("%s%sITER%20d", "output", dateFormat.format(new Date()), iterationGroup);
+				Path outputPath = new Path(outputName);
+
+				QuoteFilter localQuoteFilter = MonkeyUtils.getQuoteFilter(filterType, MonkeyReducer.inputFile,
+						MonkeyUtils.QUOTE_SIZE, MonkeyReducer.prefix, MonkeyReducer.vectorSize, MonkeyReducer.nbHash);
+
+				long letters = batchSizer.getBatchSize();
+				typeIteration(localQuoteFilter);
+				
+				long typingMillis = 0;
+				
+				for (long monkeyMillis : millis) {
+					typingMillis += monkeyMillis;
+				}
+				
+				checked += letters * monkeys;
+				batchSizer.update(letters * monkeys, typingMillis);
+
+				QuoteArrayWritable foundQuotes = writeResults(fileSystem, new Path(outputPath, "part-00000"));
+
+				String status = "So far checked " + checked + "\n";
+
+				FSDataOutputStream outputStream = fileSystem.create(new Path(MonkeyUtils.prefix + "total.txt"), true);
+				outputStream.writeBytes(status);
+				outputStream.close();
+
+				System.out.print(status);
+
+				if (foundQuotes.size() != 0) {
+					coverage.markFound(foundQuotes);
+					coverage.save(outputPath);
+				}
+
+				// Check for stop file, this is how I gracefully exit the infinite loop
+				if (fileSystem.exists(new Path(MonkeyUtils.prefix + "stop.txt"))) {
+					System.out.println("Stop file found ... stopping");
+					break;
+				}
+				
+				iteration++;
+			}
+		} finally {
+			close();
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Has every monkey type a batch of letters and checks what they typed.
+	 * What each found is in getResults afterwards
+	 * @param localQuoteFilter The filter the monkeys test against
+	 */
+	void typeIteration(QuoteFilter localQuoteFilter) {
+		if (mappers == null || mappers.length != monkeys) {
+			mappers = new MonkeyMapper[monkeys];
+			keys = new long[monkeys];
+			results = new QuoteArrayWritable[monkeys];
+			millis = new long[monkeys];
+
+			for (int i = 0; i < monkeys; i++) {
+				mappers[i] = new MonkeyMapper();
+			}
+
+			// Each engine gets its own settings, like a job's tasks do from its conf
+			if (getConf() != null) {
+				JobConf job = new JobConf(getConf());
+				reducer.configure(job);
+
+				for (MonkeyMapper mapper : mappers) {
+					mapper.configure(job);
+				}
+			}
+
+			close();
+			pool = new ForkJoinPool(Math.max(Math.min(monkeys, Runtime.getRuntime().availableProcessors()), 1));
+		}
+
+		pool.invoke(new TypeTask(localQuoteFilter, (int) batchSizer.getBatchSize(), 0, monkeys));
+	}
+
+	/**
+	 * Gets what each monkey found in the last iteration
+	 * @return The found quotes and their counts by monkey
+	 */
+	QuoteArrayWritable[] getResults() {
+		return results;
+	}
+
+	/**
+	 * Writes the last iteration's results out the way the Hadoop job does so the output
+	 * directory looks the same
+	 * @param fileSystem The file system to write to
+	 * @param partPath The path of the part file
+	 * @return Every quote found in the iteration
+	 */
+	private QuoteArrayWritable writeResults(FileSystem fileSystem, Path partPath) throws IOException {
+		QuoteArrayWritable foundQuotes = new QuoteArrayWritable();
+
+		SequenceFile.Writer writer = SequenceFile.createWriter(fileSystem, getConf(), partPath,
+				LongWritable.class, QuoteArrayWritable.class);
+
+		try {
+			for (int i = 0; i < results.length; i++) {
+				if (results[i].size() != 0) {
+					writer.append(new LongWritable(keys[i]), results[i]);
+					foundQuotes.addAll(results[i]);
+				}
+			}
+		} finally {
+			writer.close();
+		}
+
+		return foundQuotes;
+	}
+
+	/**
+	 * Shuts down the monkeys' threads
+	 */
+	void close() {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	/**
+	 * Types and checks a range of monkeys, halving it until there's one monkey per task
+	 */
+	private class TypeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		/** The filter the monkeys test against */
+		private final QuoteFilter localQuoteFilter;
+		/** The number of letters each monkey types */
+		private final int letters;
+		/** The first monkey in the range */
+		private final int from;
+		/** One past the last monkey in the range */
+		private final int to;
+
+		TypeTask(QuoteFilter localQuoteFilter, int letters, int from, int to) {
+			this.localQuoteFilter = localQuoteFilter;
+			this.letters = letters;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new TypeTask(localQuoteFilter, letters, from, middle), new TypeTask(localQuoteFilter, letters, middle, to));
+				return;
+			}
+
+			// Each monkey is one split of the iteration
+			WorkUnit unit = new WorkUnit(run, iteration, from);
+			long start = System.nanoTime();
+
+			QuoteArrayWritable candidates = new QuoteArrayWritable();
+			mappers[from].startUnit(unit, 0);
+			mappers[from].type(localQuoteFilter, candidates, letters);
+			millis[from] = (System.nanoTime() - start) / 1000000;
+
+			final QuoteArrayWritable found = new QuoteArrayWritable();
+
+			try {
+				reducer.reduce(new LongWritable(unit.getKey()), Collections.singletonList(candidates).iterator(),
+						new OutputCollector<LongWritable, QuoteArrayWritable>() {
+							@Override
+							public void collect(LongWritable key, QuoteArrayWritable value) {
+								found.addAll(value);
+							}
+						}, Reporter.NULL);
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to check monkey " + from + "'s quotes", e);
+			}
+
+			keys[from] = unit.getKey();
+			results[from] = found;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int exitCode = ToolRunner.run(new LocalMonkeyEngine(), args);
+		System.exit(exitCode);
+	}
+}
@@ -0,0 +1,34 @@
+package com.jesseanderson.monkeys;
+
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.io.Writable;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A quote filter whose saved file can be used in place.  Everything write writes is a
+ * header followed by 8 byte aligned longs, so a memory mapped copy of the file (see
+ * MonkeyUtils.mapFile) can be searched directly.  Every task JVM on a host maps the same
+ * page cache pages instead of reading its own copy onto the heap.
+ */
+public interface MappableQuoteFilter extends QuoteFilter, Writable {
+	/**
+	 * Uses a buffer holding what write wrote without copying it.  A filter used this
+	 * way is read only if the buffer is
+	 * @param buffer The saved filter, usually mapped from a file
+	 */
+	public void wrap(ByteBuffer buffer);
+}
@@ -1,27 +1,33 @@
 package com.jesseanderson.monkeys;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.URI;
 import java.text.SimpleDateFormat;
-import java.util.BitSet;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hadoop.conf.Configured;
-import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
@@ -41,10 +47,26 @@ import org.apache.hadoop.util.ToolRunner;
 
 /**
  * The driver for the Hadoop project.  Creates the jobs, reads and writes out the BitSets, story text, and image files.
+ * 
+ * The jobs are pipelined.  As soon as one finishes the next is submitted and the finished
+ * one's results are handed to a single post-processing thread, so the cluster keeps typing
+ * while the coverage, images and totals are written.  Having one thread keeps the updates
+ * in iteration order.
  */
 public class MonkeyDriver extends Configured implements Tool {
-	/** Stories loaded in memory */
-	private Story[] stories = null;
+	/** The property for the number of finished jobs that can wait for post-processing before the driver waits too */
+	public static final String MAX_PENDING_PROPERTY = "monkeys.driver.max.pending";
+	/** The property for the number of threads reading a job's part files, one per core when it isn't set */
+	public static final String PART_FILE_THREADS_PROPERTY = "monkeys.driver.part.file.threads";
+	/** The number of finished jobs that can wait for post-processing when it isn't set */
+	public static final int DEFAULT_MAX_PENDING = 2;
+	
+	/** The stories and what has been found in them so far.  Only used on the post-processing thread */
+	private Coverage coverage = null;
+	/** The format for the dates in the output directories */
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmssSSS");
+	/** Reads the part files for the post-processing thread */
+	private ExecutorService partFileReaders;
 	
 	@Override
 	public int run(String[] args) throws Exception {
@@ -58,272 +80,303 @@ public class MonkeyDriver extends Configured implements Tool {
 		}
 		*/
 		
-		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmssSSS");
-
-		long iterations = 0;
+		// The same run id types the same letters, so a run can be repeated by setting it
+		long run = getConf().getLong(WorkUnit.RUN_PROPERTY, System.currentTimeMillis());
+		MonkeyUtils.logger.info("Run " + run);
 		
-		// Run forever, the stop file allows us to exit this loop
-		while (true) {
-			long iterationGroup = iterations * MonkeyMapper.MAP_ITERATION_SIZE;
-			
-			// Create new monkeys job
-			JobConf conf = new JobConf(getConf(), getClass());
-			conf.set( "mapred.child.java.opts", "-Xmx256m");
-			conf.setJobName("Monkey Shakespeare");
-			FileInputFormat.addInputPath(conf, new Path(MonkeyUtils.prefix + "input.txt"));
-			
-			MonkeyUtils.logger.info("Input created");
-			
-			String outputName = MonkeyUtils.prefix + "output/" + String.format("%s%sITER%20d", "output", dateFormat.format(new Date()), iterationGroup);
-			Path outputPath = new Path(outputName);
-			FileOutputFormat.setOutputPath(conf, outputPath);
-			
-			MonkeyUtils.logger.info("Output created");
-			
-			conf.setOutputKeyClass(LongWritable.class);
-			conf.setOutputValueClass(StringArrayWritable.class);
-			conf.setMapperClass(MonkeyMapper.class);
-			conf.setCombinerClass(MonkeyReducer.class);
-			conf.setReducerClass(MonkeyReducer.class);
+		long iteration = 0;
+		// The exact number of candidates checked so far, from the mappers' counters
+		long checked = 0;
+		BatchSizer batchSizer = new BatchSizer(getConf());
+		int maxPending = Math.max(getConf().getInt(MAX_PENDING_PROPERTY, DEFAULT_MAX_PENDING), 1);
+		int partFileThreads = Math.max(getConf().getInt(PART_FILE_THREADS_PROPERTY, 
+				Runtime.getRuntime().availableProcessors()), 1);
 		
-			MonkeyUtils.logger.info("Running job");
-			
-			JobClient.runJob(conf);
-			
-			FileSystem fileSystem = FileSystem.get(URI.create(MonkeyUtils.prefix), conf);
-			
-			String status = "So far checked " + iterationGroup + "\n";
-			
-			FSDataOutputStream outputStream = fileSystem.create(new Path(MonkeyUtils.prefix + "total.txt"), true);
-			outputStream.writeBytes(status);
-			outputStream.close();
+		final FileSystem fileSystem = FileSystem.get(URI.create(MonkeyUtils.prefix), getConf());
+		
+		// Every job's mappers and reducers use the filter picked with -D monkeys.filter.type
+		QuoteFilter.Type filterType = MonkeyReducer.getFilterType(getConf());
+		MonkeyUtils.logger.info("Filter " + filterType);
+		
+		// Build and save the filter here, where there's the heap for it, so the tasks only map or read it
+		MonkeyUtils.getQuoteFilter(filterType, MonkeyReducer.inputFile, MonkeyUtils.QUOTE_SIZE, 
+				MonkeyReducer.prefix, MonkeyReducer.vectorSize, MonkeyReducer.nbHash);
+		
+		// Not a daemon, so the JVM can't exit in the middle of saving the coverage
+		ExecutorService processor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable, "monkey-post-processing");
+			}
+		});
+		
+		partFileReaders = Executors.newFixedThreadPool(partFileThreads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
 			
-			System.out.print(status);
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "monkey-part-reader-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		// The post-processing that's been queued, oldest first
+		LinkedList<Future<Void>> pending = new LinkedList<Future<Void>>();
+		// The last job submitted
+		RunningJob job = null;
+		
+		try {
+			JobConf conf = createJobConf(run, iteration, checked, batchSizer.getBatchSize());
+			job = submitJob(conf);
 			
-			loadStoriesAndBitSet(fileSystem);
-
-			// Check to see if any job has any results
-			FileStatus[] files = fileSystem.listStatus(outputPath);
+			// Run forever, the stop file allows us to exit this loop
+			while (true) {
+				job.waitForCompletion();
+				
+				if (!job.isSuccessful()) {
+					throw new IOException("Job failed!");
+				}
+				
+				Counters counters = job.getCounters();
+				long candidates = counters.getCounter(MonkeyMapper.Counter.CANDIDATES);
+				checked += candidates;
+				batchSizer.update(candidates, counters.getCounter(MonkeyMapper.Counter.TYPING_MILLIS));
+				
+				// Check for stop file, this is how I gracefully exit the infinite loop
+				boolean stop = fileSystem.exists(new Path(MonkeyUtils.prefix + "stop.txt"));
+				
+				final Path outputPath = FileOutputFormat.getOutputPath(conf);
+				final long checkedSoFar = checked;
+				
+				// Get the cluster going on the next iteration before post-processing this one
+				if (!stop) {
+					iteration++;
+					conf = createJobConf(run, iteration, checked, batchSizer.getBatchSize());
+					job = submitJob(conf);
+				}
+				
+				// Wait for the oldest post-processing when too much is queued
+				while (pending.size() >= maxPending) {
+					waitFor(pending.removeFirst());
+				}
+				
+				pending.add(processor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						processOutput(fileSystem, outputPath, checkedSoFar);
+						return null;
+					}
+				}));
+				
+				if (stop) {
+					System.out.println("Stop file found ... stopping");
+					break;
+				}
+			}
 			
-			for (FileStatus fileStatus : files) {
-				if (fileStatus.getPath().toString().contains("part-")) {
-					if (fileStatus.getLen() != 0) {
-						processPartFile(fileSystem, fileStatus.getPath());
-						System.out.println("Found part file with non-zero.  File was:" + fileStatus.getPath().toString());
-						
-						break;
+			while (!pending.isEmpty()) {
+				waitFor(pending.removeFirst());
+			}
+		} finally {
+			// After a failure the next job may already be running with no one to read its output
+			if (job != null) {
+				try {
+					if (!job.isComplete()) {
+						MonkeyUtils.logger.warn("Killing job " + job.getID());
+						job.killJob();
 					}
+				} catch (IOException e) {
+					MonkeyUtils.logger.error("Unable to kill job " + job.getID(), e);
 				}
 			}
 			
-			// Check for stop file, this is how I gracefully exit the infinite loop
-			if (fileSystem.exists(new Path(MonkeyUtils.prefix + "stop.txt"))) {
-				System.out.println("Stop file found ... stopping");
-				break;
+			// Let the queued post-processing finish rather than leave the coverage half written
+			while (!pending.isEmpty()) {
+				try {
+					waitFor(pending.removeFirst());
+				} catch (Exception e) {
+					MonkeyUtils.logger.error("Post-processing failed while stopping", e);
+				}
 			}
 			
-			iterations++;
+			processor.shutdown();
+			partFileReaders.shutdown();
 		}
 		
 		return 0;
 	}
-
+	
 	/**
-	 * Loads stories from text and loads their corresponding BitSet objects
-	 * @fileSystem The fileSystem object to use for loading the files
+	 * Creates the job for an iteration
+	 * @param run The run's id
+	 * @param iteration The iteration in the run
+	 * @param checked The number of candidates checked before the iteration
+	 * @param batchSize The number of letters each map call types
+	 * @return The job
 	 */
-	private void loadStoriesAndBitSet(FileSystem fileSystem) throws IOException {
-		if (stories == null) {
-			// Load stories into memory, to check for found strings
-			Path storiesBase = new Path(MonkeyUtils.prefix + Story.STORIES_DIRECTORY);
-			FileStatus[] storiesList = fileSystem.listStatus(storiesBase, new PathFilter() {
-				@Override
-				public boolean accept(Path arg0) {
-					return arg0.getName().endsWith(Story.STORY_EXTENSION) && !arg0.getName().contains("total");
-				}
-			});
-			
-			stories = new Story[storiesList.length];
-			
-			for (int i = 0; i < storiesList.length; i++) {
-				stories[i] = new Story();
-				stories[i].name = storiesList[i].getPath().getName();
-				stories[i].name = stories[i].name.substring(0, stories[i].name.indexOf("."));
-
-				StringBuilder builder = MonkeyUtils.readEntireFile(storiesList[i].getPath());
-				stories[i].story = builder.toString();
+	private JobConf createJobConf(long run, long iteration, long checked, long batchSize) {
+		// Create new monkeys job
+		JobConf conf = new JobConf(getConf(), getClass());
+		conf.set( "mapred.child.java.opts", "-Xmx256m");
+		conf.setJobName("Monkey Shakespeare");
+		FileInputFormat.addInputPath(conf, new Path(MonkeyUtils.prefix + "input.txt"));
+		
+		MonkeyUtils.logger.info("Input created");
+		
+		String outputName = MonkeyUtils.prefix + "output/" + String.format("%s%sITER%20d", "output", dateFormat.format(new Date()), checked);
+		FileOutputFormat.setOutputPath(conf, new Path(outputName));
+		
+		MonkeyUtils.logger.info("Output created");
+		
+		conf.setOutputKeyClass(LongWritable.class);
+		conf.setOutputValueClass(QuoteArrayWritable.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
+		conf.setMapperClass(MonkeyMapper.class);
+		conf.setReducerClass(MonkeyReducer.class);
+		conf.set(MonkeyReducer.FILTER_TYPE_PROPERTY, MonkeyReducer.getFilterType(getConf()).name());
+		conf.setLong(MonkeyMapper.BATCH_SIZE_PROPERTY, batchSize);
+		conf.setLong(WorkUnit.RUN_PROPERTY, run);
+		conf.setLong(WorkUnit.ITERATION_PROPERTY, iteration);
+		
+		return conf;
+	}
+	
+	/**
+	 * Submits a job without waiting for it
+	 * @param conf The job
+	 * @return The running job
+	 */
+	private RunningJob submitJob(JobConf conf) throws IOException {
+		MonkeyUtils.logger.info("Running job");
+		
+		return new JobClient(conf).submitJob(conf);
+	}
+	
+	/**
+	 * Waits for queued post-processing to finish
+	 * @param future The post-processing
+	 */
+	private void waitFor(Future<Void> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while post-processing");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
 			}
 			
-			// Load story bit sets into memory
-			FileStatus[] foundInStoriesList = fileSystem.listStatus(storiesBase, new PathFilter() {
-				@Override
-				public boolean accept(Path arg0) {
-					return arg0.getName().endsWith(Story.BIT_SET_EXTENSION);
-				}
-			});
-			
-			MonkeyUtils.logger.info("Found " + storiesList.length + " stories and " + foundInStoriesList.length + " bit sets. In path \"" + 
-					storiesBase.toUri() + "\"");
-			
-			if (foundInStoriesList.length == 0) {
-				// Create new bit set files
-				for (int i = 0; i < storiesList.length; i++) {
-					FSDataOutputStream outputStream = fileSystem.create(new Path(stories[i].getBitSetFile()), true);
-					outputStream.close();
-					
-					stories[i].bitSet = new BitSet();
-				}
-			} else if (foundInStoriesList.length == storiesList.length) {
-				// Load in existing bit set files
-				for (int i = 0; i < storiesList.length; i++) {
-					try {
-						if (fileSystem.getFileStatus(new Path(stories[i].getBitSetFile())).getLen() != 0) {
-							FSDataInputStream inputStream = fileSystem.open(new Path(stories[i].getBitSetFile()));
-							ObjectInputStream s = new ObjectInputStream(inputStream); 
-					        BitSet bitSet = (BitSet) s.readObject(); 
-							inputStream.close();
-							
-							stories[i].bitSet = bitSet;
-						} else {
-							FSDataOutputStream outputStream = fileSystem.create(new Path(stories[i].getBitSetFile()), true);
-							outputStream.close();
-							
-							stories[i].bitSet = new BitSet();
-						}
-					} catch (Exception e) {
-						MonkeyUtils.logger.error("Error while reading in BitSet", e);
-					}
-				}
-			} else {
-				MonkeyUtils.logger.fatal("Story and bit set sizes do not match up!");
-				return;
-			}
+			throw new IOException("Post-processing failed", e.getCause());
 		}
 	}
 	
 	/**
-	 * Example Output:
-	 * 2000000	tonybyse,
-	 */
-	private static Pattern foundStringsPattern = Pattern.compile("\\d*\\s*(\\w*),\\s*");
-	
-	/*
-	 * Processes the part file to see which strings were found.  Updates the BitSets.
-	 * Creates the images and html table file
+	 * Post-processes a finished job.  Writes the totals and updates the coverage with what was found
 	 * @param fileSystem The file system object to load the files from
-	 * @param foundStringsPath The path to the part file
+	 * @param outputPath The job's output directory
+	 * @param checked The number of candidates checked through the job
 	 */
-	private void processPartFile(FileSystem fileSystem, Path foundStringsPath) {
-		StringBuilder builder;
+	private void processOutput(final FileSystem fileSystem, Path outputPath, long checked) throws IOException {
+		String status = "So far checked " + checked + "\n";
 		
-		try {
-			builder = MonkeyUtils.readEntireFile(foundStringsPath);
-		} catch (Exception e) {
-			MonkeyUtils.logger.error("Unable to read found strings file", e);
-			return;
-		}
+		FSDataOutputStream outputStream = fileSystem.create(new Path(MonkeyUtils.prefix + "total.txt"), true);
+		outputStream.writeBytes(status);
+		outputStream.close();
 		
-		String[] lines = builder.toString().split("\n");
+		System.out.print(status);
 		
-		// Go through all found strings
-		for (String line : lines) {
-			Matcher m = foundStringsPattern.matcher(line);
-			
-			if (m.matches()) {
-				String foundString = m.group(1);
+		if (coverage == null) {
+			// Only kept once it's loaded so a failed load isn't mistaken for one that worked
+			Coverage loaded = new Coverage(fileSystem);
+			loaded.load();
+			coverage = loaded;
+		}
+
+		// Read every reducer's part file at once
+		FileStatus[] files = fileSystem.listStatus(outputPath);
+		ArrayList<Callable<QuoteArrayWritable>> reads = new ArrayList<Callable<QuoteArrayWritable>>();
+		
+		for (FileStatus fileStatus : files) {
+			if (fileStatus.getPath().getName().startsWith("part-")) {
+				final Path partPath = fileStatus.getPath();
 				
-				// See which story the string is found in
-				for (int i = 0; i < stories.length; i++) {
-					// TODO: This part is inefficient and should use Lucene or something faster than indexOf
-					int startIndex = -1;
-					
-					// Update that story's BitSet
-					while ((startIndex = stories[i].story.indexOf(foundString, startIndex + 1)) != -1) {
-						for (int j = 0; j < foundString.length(); j++) {
-							stories[i].bitSet.set(startIndex + j);
-						}
+				reads.add(new Callable<QuoteArrayWritable>() {
+					@Override
+					public QuoteArrayWritable call() throws IOException {
+						return readPartFile(fileSystem, partPath);
 					}
-				}
-			} else {
-				MonkeyUtils.logger.info("Did not match regex.  Line was \"" + line + "\"");
+				});
 			}
 		}
 		
-		ImageGenerator generator = new ImageGenerator();
+		QuoteArrayWritable foundQuotes = new QuoteArrayWritable();
+		int nonEmptyParts = 0;
 		
 		try {
-			Path totalsPath = new Path(MonkeyUtils.prefix + Story.STORIES_DIRECTORY + "totals.xml");
-			FSDataOutputStream totalsOutputStream = fileSystem.create(totalsPath, true);
-			
-			totalsOutputStream.writeBytes("<table><tr><td>Title</td><td>Percent Found</td><td>Total Chars. Found</td><td>Total Chars.</td><td>Chars. Left</td></tr>");
-		
-			// Output new BitSet objects and to foundStringsPath to keep a record of the BitSet at that point
-			for (int i = 0; i < stories.length; i++) {
-				// Output new BitSet objects to save overall state
-				FSDataOutputStream outputStream = fileSystem.create(new Path(stories[i].getBitSetFile()), true);
-				ObjectOutputStream s = new ObjectOutputStream(outputStream); 
-		        s.writeObject(stories[i].bitSet);
-				outputStream.close();
+			for (Future<QuoteArrayWritable> read : partFileReaders.invokeAll(reads)) {
+				QuoteArrayWritable partQuotes = read.get();
 				
-				// Output image of BitSet
-				outputStream = fileSystem.create(new Path(stories[i].getImageFile()), true);
-				int found = generator.createImage(stories[i].bitSet, stories[i].story.length(), outputStream);
-				outputStream.close();
-				
-				// Output to foundStringsPath to keep a record of the BitSet and image at that point
-				String baseToPath = foundStringsPath.getParent().toString() + "/" + stories[i].name;
-				copyFile(new Path(stories[i].getBitSetFile()), new Path(baseToPath + Story.BIT_SET_EXTENSION), fileSystem);
-				
-				Path imagePath = new Path(baseToPath + Story.IMAGE_EXTENSION);
-				copyFile(new Path(stories[i].getImageFile()), imagePath, fileSystem);
-				
-				// Copy current to local filesystem
-				fileSystem.copyToLocalFile(imagePath, new Path("currentstories/" + imagePath.getName()));
-				
-				int storySize = stories[i].story.length();
-				float percentDone = (((float)found / (float) storySize) * 100f);
-				int charactersLeft = storySize - found; 
-				
-				String htmlTotalOuput = String.format( "<tr><td>%s</td><td>%.3f%%</td><td>%,d</td><td>%,d</td><td>%d</td></tr>", stories[i].name, 
-						percentDone, found, storySize, charactersLeft);
-				totalsOutputStream.writeBytes(htmlTotalOuput + "\n");
-				
-				String loggerTotalOuput = String.format( "For %s found so far %.3f%% Found: %,d Total: %,d Left: %,d", stories[i].name, 
-						percentDone, found, storySize, charactersLeft);
-				MonkeyUtils.logger.info(loggerTotalOuput);
+				if (partQuotes.size() != 0) {
+					foundQuotes.addAll(partQuotes);
+					nonEmptyParts++;
+				}
 			}
-			
-			totalsOutputStream.writeBytes("</table>");
-			
-			totalsOutputStream.close();
-			
-			// Copy totals file
-			copyFile(totalsPath, new Path(foundStringsPath.getParent().toString() + totalsPath.getName()), fileSystem);
-			fileSystem.copyToLocalFile(totalsPath, new Path("currentstories/" + totalsPath.getName()));
-		} catch (Exception e) {
-			MonkeyUtils.logger.error("Unable to write new BitSet file", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading the part files");
+		} catch (ExecutionException e) {
+			// Going on without one of the part files would lose its quotes for good
+			throw new IOException("Unable to read the part files in " + outputPath, e.getCause());
+		}
+		
+		// Apply all of the reducers' results at once
+		if (foundQuotes.size() != 0) {
+			processFoundQuotes(outputPath, foundQuotes);
+			System.out.println("Found " + foundQuotes.size() + " quotes in " + nonEmptyParts + " of " + reads.size() + 
+					" part files.  Output was:" + outputPath.toString());
 		}
 	}
-	
+
 	/**
-	 * Copies a file from one path to another
-	 * @param from The source file
-	 * @param to The destination file
+	 * Reads all of the packed quotes out of a part file.  Called on the part file reading threads
 	 * @param fileSystem The file system object to load the files from
+	 * @param foundStringsPath The path to the part file
+	 * @return The found quotes.  Empty if there were none
 	 */
-	private void copyFile(Path from, Path to, FileSystem fileSystem) throws IOException {
-		FSDataInputStream inputStream = fileSystem.open(from);		
-		FSDataOutputStream outputStream = fileSystem.create(to, true);
+	private QuoteArrayWritable readPartFile(FileSystem fileSystem, Path foundStringsPath) throws IOException {
+		QuoteArrayWritable foundQuotes = new QuoteArrayWritable();
+		SequenceFile.Reader reader = new SequenceFile.Reader(fileSystem, foundStringsPath, getConf());
 		
-		int read;
-		byte[] buffer = new byte[4096];
-		
-		while ((read = inputStream.read(buffer)) != -1) {
-			outputStream.write(buffer, 0, read);
+		try {
+			LongWritable key = new LongWritable();
+			QuoteArrayWritable value = new QuoteArrayWritable();
+			
+			while (reader.next(key, value)) {
+				for (int i = 0; i < value.size(); i++) {
+					foundQuotes.add(value.get(i));
+				}
+			}
+		} finally {
+			reader.close();
 		}
 		
-		inputStream.close();
-		outputStream.close();
+		return foundQuotes;
+	}
+	
+	/*
+	 * Processes the job's found strings.  Updates the BitSets.
+	 * Creates the images and html table file
+	 * @param outputPath The job's output directory
+	 * @param foundQuotes The packed quotes read from all of the job's part files
+	 */
+	private void processFoundQuotes(Path outputPath, QuoteArrayWritable foundQuotes) throws IOException {
+		// Go through all found strings and update the BitSets of the stories they're in
+		coverage.markFound(foundQuotes);
+		coverage.save(outputPath);
 	}
 	
 	public static void main(String[] args) throws Exception {
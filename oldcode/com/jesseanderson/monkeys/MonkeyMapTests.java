@@ -2,12 +2,20 @@ package com.jesseanderson.monkeys;
 
 import static org.mockito.Mockito.*;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapred.JobConf;
@@ -19,6 +27,9 @@ import org.apache.hadoop.util.hash.Hash;
 import org.junit.*;
 import static org.junit.Assert.*;
 
+import ec.util.MersenneTwister;
+import ec.util.MersenneTwisterFast;
+
 /*
  * Copyright 2011 Jesse Anderson
  * This program is free software: you can redistribute it and/or modify
@@ -242,6 +253,157 @@ public class MonkeyMapTests {
 		}
 	}
 	
+	/**
+	 * Compares the throughput of the shared, synchronized MersenneTwister that used to be behind
+	 * getRandomBytes against the per-thread MersenneTwisterFast, with one thread per core
+	 * @throws Exception
+	 */
+	@Ignore
+	@Test
+	public void randomSpeed() throws Exception {
+		final int threads = Runtime.getRuntime().availableProcessors();
+		final int quotesPerThread = 2000000;
+		final MersenneTwister shared = new MersenneTwister();
+		
+		Runnable synchronizedRandom = new Runnable() {
+			@Override
+			public void run() {
+				byte[] randomBytes = new byte[MonkeyUtils.QUOTE_SIZE];
+				
+				for (int i = 0; i < quotesPerThread; i++) {
+					shared.nextBytes(randomBytes);
+					
+					for (int j = 0; j < randomBytes.length; j++) {
+						randomBytes[j] = (byte) ((Math.abs(randomBytes[j]) % 26) + 97);
+					}
+				}
+			}
+		};
+		
+		Runnable perThreadRandom = new Runnable() {
+			@Override
+			public void run() {
+				byte[] randomBytes = new byte[MonkeyUtils.QUOTE_SIZE];
+				
+				for (int i = 0; i < quotesPerThread; i++) {
+					MonkeyUtils.getRandomBytes(randomBytes);
+				}
+			}
+		};
+		
+		long synchronizedTime = timeThreads(synchronizedRandom, threads);
+		long perThreadTime = timeThreads(perThreadRandom, threads);
+		
+		long totalQuotes = (long) quotesPerThread * threads;
+		
+		System.out.println("Threads " + threads + " quotes " + totalQuotes);
+		System.out.println("Synchronized MersenneTwister " + synchronizedTime + " ms " + 
+				(totalQuotes * 1000 / Math.max(synchronizedTime, 1)) + " quotes/sec");
+		System.out.println("Per-thread MersenneTwisterFast " + perThreadTime + " ms " + 
+				(totalQuotes * 1000 / Math.max(perThreadTime, 1)) + " quotes/sec");
+	}
+	
+	/**
+	 * Runs the same Runnable on a number of threads at once
+	 * @param runnable The work for each thread
+	 * @param threads The number of threads to run
+	 * @return The time in ms for all threads to finish
+	 */
+	private long timeThreads(Runnable runnable, int threads) throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(runnable);
+		}
+		
+		Stopwatch stopwatch = new Stopwatch();
+		stopwatch.start();
+		
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		
+		return stopwatch.stop().time();
+	}
+	
+	/**
+	 * Compares letters/sec of the original loop (a MersenneTwister word per byte, then Math.abs % 26)
+	 * against LetterGenerator, which carves 12 letters out of every 64 bits
+	 */
+	@Ignore
+	@Test
+	public void letterSpeed() {
+		byte[] letters = new byte[1024 * 1024];
+		int rounds = 50;
+		
+		MersenneTwister random = new MersenneTwister(1);
+		
+		Stopwatch oldTime = new Stopwatch();
+		oldTime.start();
+		
+		for (int i = 0; i < rounds; i++) {
+			random.nextBytes(letters);
+			
+			for (int j = 0; j < letters.length; j++) {
+				letters[j] = (byte) ((Math.abs(letters[j]) % 26) + 97);
+			}
+		}
+		
+		oldTime.stop();
+		
+		LetterGenerator generator = new LetterGenerator(new MersenneTwisterFast(1));
+		
+		Stopwatch newTime = new Stopwatch();
+		newTime.start();
+		
+		for (int i = 0; i < rounds; i++) {
+			generator.fill(letters);
+		}
+		
+		newTime.stop();
+		
+		long totalLetters = (long) letters.length * rounds;
+		
+		System.out.println("Math.abs % 26 " + oldTime.time() + " ms " + (totalLetters * 1000 / Math.max(oldTime.time(), 1)) + " letters/sec");
+		System.out.println("LetterGenerator " + newTime.time() + " ms " + (totalLetters * 1000 / Math.max(newTime.time(), 1)) + " letters/sec");
+	}
+	
+	/**
+	 * Verifies that every letter is equally likely using a chi-squared test, including
+	 * fills that don't line up with the letters carved from each word
+	 */
+	@Test
+	public void lettersUniform() {
+		LetterGenerator generator = new LetterGenerator(new MersenneTwisterFast(1234));
+		
+		long[] counts = new long[26];
+		byte[] letters = new byte[MonkeyUtils.QUOTE_SIZE];
+		int rounds = 2000000;
+		
+		for (int i = 0; i < rounds; i++) {
+			generator.fill(letters);
+			
+			for (byte letter : letters) {
+				assertTrue("Not a-z " + letter, letter >= 'a' && letter <= 'z');
+				counts[letter - 'a']++;
+			}
+		}
+		
+		double expected = (double) rounds * letters.length / 26.0;
+		double chiSquared = 0;
+		
+		for (long count : counts) {
+			chiSquared += ((count - expected) * (count - expected)) / expected;
+		}
+		
+		// 25 degrees of freedom, 99.99th percentile is about 59
+		assertTrue("Letters not uniform, chi-squared " + chiSquared, chiSquared < 59);
+	}
+	
 	/**
 	 * Verifies that the random output is only a-z 
 	 */
@@ -284,6 +446,1064 @@ public class MonkeyMapTests {
 		assertTrue("Could not find all letters", allFound == true);
 	}
 
+	/**
+	 * Compares candidates/sec between typing independent quotes and testing every window of
+	 * one continuous stream with a rolling hash.  Uses a small in-memory Bloom Filter so only
+	 * generation and hashing are timed.
+	 */
+	@Ignore
+	@Test
+	public void slidingWindowSpeed() {
+		String sample = "akingbreastwhopleadforlove";
+		RollingBloomFilter rollingBloomFilter = new RollingBloomFilter(MonkeyReducer.vectorSize, MonkeyReducer.nbHash);
+		MonkeyUtils.breakUp(rollingBloomFilter, sample, new QuoteCodec(MonkeyUtils.QUOTE_SIZE));
+		
+		MonkeyMapper mapper = new MonkeyMapper();
+		QuoteArrayWritable outputArray = new QuoteArrayWritable();
+		
+		Stopwatch quotesTime = new Stopwatch();
+		quotesTime.start();
+		mapper.typeQuotes(rollingBloomFilter, outputArray, (int) MonkeyMapper.MAP_ITERATION_SIZE);
+		quotesTime.stop();
+		
+		Stopwatch streamTime = new Stopwatch();
+		streamTime.start();
+		mapper.typeStream(rollingBloomFilter, outputArray, (int) MonkeyMapper.MAP_ITERATION_SIZE);
+		streamTime.stop();
+		
+		System.out.println("Independent quotes " + quotesTime.time() + " ms " + 
+				(MonkeyMapper.MAP_ITERATION_SIZE * 1000 / Math.max(quotesTime.time(), 1)) + " candidates/sec");
+		System.out.println("Sliding window " + streamTime.time() + " ms " + 
+				(MonkeyMapper.MAP_ITERATION_SIZE * 1000 / Math.max(streamTime.time(), 1)) + " candidates/sec");
+	}
+	
+	/**
+	 * Checks that rolling a window gives the same hash as encoding it from scratch and that
+	 * the rolling Bloom Filter finds every all-letter window but skips ones with other characters
+	 */
+	@Test
+	public void rollingHash() {
+		QuoteCodec codec = new QuoteCodec(MonkeyUtils.QUOTE_SIZE);
+		byte[] stream = new byte[1000];
+		MonkeyUtils.getRandomBytes(stream);
+		
+		long quote = codec.encode(stream, 0);
+		
+		for (int i = 1; i + MonkeyUtils.QUOTE_SIZE <= stream.length; i++) {
+			quote = codec.roll(quote, stream[i - 1], stream[i + MonkeyUtils.QUOTE_SIZE - 1]);
+			assertEquals("Rolled hash differs at " + i, codec.encode(stream, i), quote);
+		}
+		
+		String sample = "akingbreast WHO pleadforlove";
+		RollingBloomFilter bloomFilter = new RollingBloomFilter(MonkeyReducer.vectorSize, MonkeyReducer.nbHash);
+		MonkeyUtils.breakUp(bloomFilter, sample, codec);
+		
+		assertTrue(bloomFilter.membershipTest(codec.encode("akingbrea".getBytes(), 0)));
+		assertTrue(bloomFilter.membershipTest(codec.encode("leadforlo".getBytes(), 0)));
+		assertTrue(bloomFilter.membershipTest(codec.encode("pleadforl".getBytes(), 0)));
+		assertFalse(bloomFilter.membershipTest(codec.encode("breastple".getBytes(), 0)));
+	}
+	
+	/**
+	 * Compares the exact QuoteHashSet and EytzingerQuoteSet against the 100M bit, 6 hash Bloom Filters.  Times single
+	 * lookups and the end to end rate of real hits from typing, filtering and double checking.
+	 * @throws Exception
+	 */
+	@Ignore
+	@Test
+	public void exactSetSpeed() throws Exception {
+		String prefix = "shakespeare1";
+		Path inputPath = new Path("pg100.txt");
+		QuoteCodec codec = new QuoteCodec(MonkeyUtils.QUOTE_SIZE);
+
+		BloomFilter bloomFilter = MonkeyUtils.getBloomFilter(inputPath,
+				MonkeyUtils.QUOTE_SIZE, prefix, MonkeyReducer.vectorSize, MonkeyReducer.nbHash, MonkeyReducer.hashType);
+		RollingBloomFilter rollingBloomFilter = MonkeyUtils.getRollingBloomFilter(inputPath, MonkeyUtils.QUOTE_SIZE, 
+				prefix, MonkeyReducer.vectorSize, MonkeyReducer.nbHash);
+		QuoteHashSet quoteHashSet = MonkeyUtils.getQuoteHashSet(inputPath, MonkeyUtils.QUOTE_SIZE, prefix);
+		EytzingerQuoteSet eytzingerQuoteSet = MonkeyUtils.getEytzingerQuoteSet(inputPath, MonkeyUtils.QUOTE_SIZE, prefix);
+		BlockedBloomFilter blockedBloomFilter = MonkeyUtils.getBlockedBloomFilter(inputPath, MonkeyUtils.QUOTE_SIZE, 
+				prefix, MonkeyReducer.vectorSize, MonkeyReducer.nbHash);
+		
+		String input = MonkeyUtils.getText(inputPath, MonkeyUtils.QUOTE_SIZE,
+				prefix, MonkeyReducer.vectorSize, MonkeyReducer.nbHash, MonkeyReducer.hashType);
+		
+		System.out.println("Distinct quotes " + quoteHashSet.size());
+		
+		// Half random quotes, half quotes from the works so both outcomes are timed
+		int lookups = 2000000;
+		long[] quotes = new long[lookups];
+		byte[][] quoteBytes = new byte[lookups][];
+		long[] workQuotes = quoteHashSet.toArray();
+		
+		for (int i = 0; i < lookups; i++) {
+			quoteBytes[i] = new byte[MonkeyUtils.QUOTE_SIZE];
+			
+			if (i % 2 == 0) {
+				MonkeyUtils.getRandomBytes(quoteBytes[i]);
+				quotes[i] = codec.encode(quoteBytes[i], 0);
+			} else {
+				quotes[i] = workQuotes[i % workQuotes.length];
+				codec.decode(quotes[i], quoteBytes[i], 0);
+			}
+		}
+		
+		int passed = 0;
+		Stopwatch hadoopTime = new Stopwatch();
+		hadoopTime.start();
+		
+		for (int i = 0; i < lookups; i++) {
+			if (bloomFilter.membershipTest(new Key(quoteBytes[i]))) {
+				passed++;
+			}
+		}
+		
+		hadoopTime.stop();
+		
+		System.out.println("Hadoop BloomFilter " + (hadoopTime.time() * 1000000 / lookups) + " ns/lookup passed " + passed);
+		
+		QuoteFilter[] filters = { rollingBloomFilter, blockedBloomFilter, quoteHashSet, eytzingerQuoteSet };
+		
+		for (QuoteFilter filter : filters) {
+			passed = 0;
+			Stopwatch lookupTime = new Stopwatch();
+			lookupTime.start();
+			
+			for (int i = 0; i < lookups; i++) {
+				if (filter.membershipTest(quotes[i])) {
+					passed++;
+				}
+			}
+			
+			lookupTime.stop();
+			
+			System.out.println(filter.getClass().getSimpleName() + " " + (lookupTime.time() * 1000000 / lookups) + 
+					" ns/lookup passed " + passed);
+		}
+		
+		for (QuoteFilter filter : filters) {
+			MonkeyMapper mapper = new MonkeyMapper();
+			QuoteArrayWritable candidates = new QuoteArrayWritable();
+			int rounds = 10;
+			int hits = 0;
+			
+			Stopwatch endToEndTime = new Stopwatch();
+			endToEndTime.start();
+			
+			for (int i = 0; i < rounds; i++) {
+				candidates.clear();
+				mapper.typeStream(filter, candidates, (int) MonkeyMapper.MAP_ITERATION_SIZE);
+				
+				for (int j = 0; j < candidates.size(); j++) {
+					if (filter == quoteHashSet || filter == eytzingerQuoteSet || input.contains(codec.toString(candidates.get(j)))) {
+						hits++;
+					}
+				}
+			}
+			
+			endToEndTime.stop();
+			
+			System.out.println(filter.getClass().getSimpleName() + " end to end " + endToEndTime.time() + " ms " + 
+					(rounds * MonkeyMapper.MAP_ITERATION_SIZE * 1000 / Math.max(endToEndTime.time(), 1)) + " candidates/sec " +
+					(hits * 1000.0 / Math.max(endToEndTime.time(), 1)) + " hits/sec");
+		}
+	}
+	
+	/**
+	 * Checks the Eytzinger set against a sorted array for quotes in it, between them and
+	 * off both ends, both built in memory and mapped from its file
+	 * @throws IOException
+	 */
+	@Test
+	public void eytzingerSearch() throws IOException {
+		MersenneTwisterFast random = new MersenneTwisterFast(99);
+		
+		for (int size = 0; size < 70; size++) {
+			long[] quotes = new long[size];
+			
+			for (int i = 0; i < size; i++) {
+				// Only even quotes so the odd ones are known misses, with some duplicates
+				quotes[i] = 2 * random.nextInt(size + 5) + 2;
+			}
+			
+			long[] sorted = quotes.clone();
+			Arrays.sort(sorted);
+			
+			EytzingerQuoteSet quoteSet = new EytzingerQuoteSet(quotes);
+			
+			for (long quote = 0; quote < (2 * size) + 14; quote++) {
+				assertEquals("Size " + size + " quote " + quote, Arrays.binarySearch(sorted, quote) >= 0, 
+						quoteSet.membershipTest(quote));
+			}
+		}
+	}
+	
+	/**
+	 * Checks the suffix automaton's match lengths and quote tests against indexOf
+	 */
+	@Test
+	public void suffixAutomatonMatches() {
+		String works = "abcabxabcd, abcab; dabcx abca";
+		SuffixAutomaton automaton = new SuffixAutomaton(works, 3);
+		QuoteCodec codec = new QuoteCodec(3);
+		
+		// A small alphabet so there are plenty of long matches
+		MersenneTwisterFast random = new MersenneTwisterFast(3);
+		StringBuilder stream = new StringBuilder();
+		SuffixAutomaton.Matcher matcher = automaton.newMatcher();
+		
+		for (int i = 0; i < 2000; i++) {
+			char letter = (char) ('a' + random.nextInt(5));
+			stream.append(letter);
+			
+			int expected = 0;
+			
+			while (expected < stream.length() && 
+					works.indexOf(stream.substring(stream.length() - expected - 1)) != -1) {
+				expected++;
+			}
+			
+			assertEquals("After " + stream, expected, matcher.next(letter));
+		}
+		
+		for (long quote = 0; quote < codec.getRange(); quote++) {
+			assertEquals(codec.toString(quote), works.contains(codec.toString(quote)), 
+					automaton.membershipTest(quote));
+		}
+	}
+	
+	/**
+	 * Checks that the automaton over the whole works fits in a task's cache once frozen and
+	 * that mapping its saved file gives the same automaton
+	 */
+	@Test
+	public void suffixAutomatonWorks() throws IOException {
+		LocalFileSystem fs = FileSystem.getLocal(new JobConf());
+		Path automatonPath = new Path(MonkeyUtils.getSuffixAutomatonName("automatontest"));
+		
+		try {
+			String works = MonkeyUtils.readEntireFile(MonkeyReducer.inputFile).toString();
+			SuffixAutomaton built = new SuffixAutomaton(works, MonkeyUtils.QUOTE_SIZE);
+			
+			// Tasks run with -Xmx256m and the cache gets 3/4 of that
+			assertTrue(built.getSizeInBytes() + " bytes", built.getSizeInBytes() < ((256L << 20) / 4) * 3);
+			
+			FSDataOutputStream outputStream = fs.create(automatonPath, true);
+			built.write(outputStream);
+			outputStream.close();
+			
+			SuffixAutomaton mapped = new SuffixAutomaton(MonkeyUtils.QUOTE_SIZE);
+			mapped.wrap(MonkeyUtils.mapFile(fs.pathToFile(automatonPath)));
+			
+			assertEquals(built.getStates(), mapped.getStates());
+			assertEquals(built.getSizeInBytes(), mapped.getSizeInBytes());
+			
+			QuoteCodec codec = new QuoteCodec(MonkeyUtils.QUOTE_SIZE);
+			MersenneTwisterFast random = new MersenneTwisterFast(5);
+			
+			for (int i = 0; i < 10000; i++) {
+				int start = random.nextInt(works.length() - MonkeyUtils.QUOTE_SIZE);
+				String window = works.substring(start, start + MonkeyUtils.QUOTE_SIZE);
+				
+				if (Pattern.matches("[a-z]+", window)) {
+					assertTrue(window, mapped.membershipTest(codec.encode(window)));
+				}
+				
+				long quote = (random.nextLong() & Long.MAX_VALUE) % codec.getRange();
+				assertEquals(built.membershipTest(quote), mapped.membershipTest(quote));
+			}
+			
+			SuffixAutomaton.Matcher builtMatcher = built.newMatcher();
+			SuffixAutomaton.Matcher mappedMatcher = mapped.newMatcher();
+			
+			for (int i = 0; i < 100000; i++) {
+				// Common letters so the matches run long
+				int letter = "etaoinshr".charAt(random.nextInt(9));
+				assertEquals(builtMatcher.next(letter), mappedMatcher.next(letter));
+			}
+		} finally {
+			fs.delete(automatonPath, false);
+		}
+	}
+	
+	/**
+	 * Checks the suffix array's occurrences against indexOf
+	 */
+	@Test
+	public void suffixArraySearch() {
+		MersenneTwisterFast random = new MersenneTwisterFast(11);
+		StringBuilder works = new StringBuilder();
+		
+		for (int i = 0; i < 3000; i++) {
+			works.append(random.nextInt(10) == 0 ? ',' : (char) ('a' + random.nextInt(3)));
+		}
+		
+		String worksString = works.toString();
+		SuffixArray suffixArray = new SuffixArray(works);
+		
+		for (int length = 1; length <= 8; length++) {
+			for (int i = 0; i < 200; i++) {
+				byte[] pattern = new byte[length];
+				
+				for (int j = 0; j < length; j++) {
+					pattern[j] = (byte) ('a' + random.nextInt(3));
+				}
+				
+				ArrayList<Integer> expected = new ArrayList<Integer>();
+				int index = -1;
+				
+				while ((index = worksString.indexOf(new String(pattern), index + 1)) != -1) {
+					expected.add(index);
+				}
+				
+				int[] offsets = suffixArray.find(pattern, 0, length);
+				
+				assertEquals(new String(pattern), expected.size(), offsets.length);
+				assertEquals(new String(pattern), !expected.isEmpty(), suffixArray.contains(pattern, 0, length));
+				
+				for (int j = 0; j < offsets.length; j++) {
+					assertEquals(new String(pattern), expected.get(j).intValue(), offsets[j]);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Checks that the quote position index finds the same starts as indexOf
+	 */
+	@Test
+	public void quotePositionIndex() {
+		String text = "abab ababa, babab\nab aba abab";
+		QuoteCodec codec = new QuoteCodec(3);
+		QuotePositionIndex index = new QuotePositionIndex(text, codec);
+		
+		for (long quote = 0; quote < codec.getRange(); quote++) {
+			String quoteString = codec.toString(quote);
+			int key = index.find(quote);
+			int position = index.getFirst(Math.max(key, 0));
+			int startIndex = -1;
+			
+			while ((startIndex = text.indexOf(quoteString, startIndex + 1)) != -1) {
+				assertTrue(quoteString + " not indexed", key != -1 && position < index.getEnd(key));
+				assertEquals(quoteString, startIndex, index.getPosition(position++));
+			}
+			
+			assertTrue(quoteString + " indexed too often", key == -1 || position == index.getEnd(key));
+		}
+		
+		assertEquals(2, index.size());
+	}
+	
+	/**
+	 * Checks that the corpus marks quotes in the right stories, including one that
+	 * runs over the end of a story into the next
+	 */
+	@Test
+	public void corpusBoundaries() {
+		String[] texts = { "abcde", "", "fghij", "abc" };
+		Story[] stories = new Story[texts.length];
+		
+		for (int i = 0; i < texts.length; i++) {
+			stories[i] = new Story();
+			stories[i].story = texts[i];
+			stories[i].bitSet = new CoverageBitmap();
+		}
+		
+		QuoteCodec codec = new QuoteCodec(3);
+		Corpus corpus = new Corpus(stories, codec);
+		
+		assertEquals(0, corpus.getStoryIndex(4));
+		assertEquals(2, corpus.getStoryIndex(5));
+		assertEquals(3, corpus.getStoryIndex(12));
+		
+		assertEquals(2, corpus.markFound(codec.encode("abc")));
+		assertEquals(1, corpus.markFound(codec.encode("def")));
+		assertEquals(0, corpus.markFound(codec.encode("xyz")));
+		
+		assertEquals("{0, 1, 2, 3, 4}", stories[0].bitSet.toString());
+		assertEquals("{}", stories[1].bitSet.toString());
+		assertEquals("{0}", stories[2].bitSet.toString());
+		assertEquals("{0, 1, 2}", stories[3].bitSet.toString());
+	}
+	
+	/**
+	 * Checks the coverage bitmap against a BitSet with random ranges, from scattered quotes
+	 * that need bitmap containers to nearly complete coverage, and that it survives being written
+	 */
+	@Test
+	public void coverageBitmap() throws IOException {
+		MersenneTwisterFast random = new MersenneTwisterFast(11);
+		int size = 300000;
+		
+		CoverageBitmap bitmap = new CoverageBitmap();
+		BitSet bitSet = new BitSet();
+		
+		for (int round = 0; round < 60000; round++) {
+			int start = random.nextInt(size);
+			// Scattered quotes first, then the odd long stretch fills in the gaps
+			int length = round > 30000 && round % 1000 == 0 ? random.nextInt(100000) : 1 + random.nextInt(12);
+			int end = Math.min(start + length, size);
+			
+			int before = bitSet.cardinality();
+			bitSet.set(start, end);
+			
+			assertEquals(bitSet.cardinality() - before, bitmap.set(start, end));
+			
+			if (round % 5000 == 0) {
+				assertEquals(bitSet.cardinality(), bitmap.cardinality());
+				
+				for (int i = 0; i < 2000; i++) {
+					int index = random.nextInt(size + 100);
+					
+					assertEquals(bitSet.get(index), bitmap.get(index));
+					assertEquals(bitSet.nextSetBit(index), bitmap.nextSetBit(index));
+					assertEquals(bitSet.nextClearBit(index), bitmap.nextClearBit(index));
+				}
+			}
+		}
+		
+		assertEquals(bitSet.cardinality(), bitmap.cardinality());
+		assertEquals(bitmap, CoverageBitmap.valueOf(bitSet));
+		
+		int runs = 0;
+		
+		for (int i = bitSet.nextSetBit(0); i >= 0; i = bitSet.nextSetBit(bitSet.nextClearBit(i))) {
+			runs++;
+		}
+		
+		assertEquals(runs, bitmap.getRuns());
+		
+		DataOutputBuffer out = new DataOutputBuffer();
+		bitmap.write(out);
+		
+		DataInputBuffer in = new DataInputBuffer();
+		in.reset(out.getData(), out.getLength());
+		CoverageBitmap read = new CoverageBitmap();
+		read.readFields(in);
+		
+		assertEquals(bitmap, read);
+		assertEquals(bitmap.cardinality(), read.cardinality());
+		assertEquals(bitSet.toString(), read.toString());
+		
+		System.out.println(runs + " runs " + out.getLength() + " bytes bitmap " + (bitSet.size() / 8) + " bytes BitSet");
+	}
+	
+	/**
+	 * Checks that loading gets back a BitSet file a snapshot died in the middle of replacing
+	 * and refuses to carry on from a truncated one
+	 */
+	@Test
+	public void coverageRecovery() throws IOException {
+		File directory = File.createTempFile("coverage", "");
+		directory.delete();
+		
+		String prefix = MonkeyUtils.prefix;
+		FileSystem fs = FileSystem.getLocal(new JobConf());
+		
+		try {
+			MonkeyUtils.prefix = directory.getPath() + "/";
+			
+			String[] texts = { "abcdefghijklmnopqrstuvwxyz", "zyxwvutsrqponmlkjihgfedcba" };
+			
+			for (int i = 0; i < texts.length; i++) {
+				FSDataOutputStream outputStream = fs.create(new Path(MonkeyUtils.prefix + Story.STORIES_DIRECTORY + "story" + i + Story.STORY_EXTENSION));
+				outputStream.writeBytes(texts[i]);
+				outputStream.close();
+			}
+			
+			// Creates the empty BitSet files
+			new Coverage(fs).load();
+			
+			CoverageBitmap bitmap = new CoverageBitmap();
+			bitmap.set(2, 5);
+			DataOutputBuffer out = new DataOutputBuffer();
+			bitmap.write(out);
+			
+			// Die after the old copy was moved aside and part way through the new one
+			Path bitSetPath = new Path(MonkeyUtils.prefix + Story.STORIES_DIRECTORY + "story0" + Story.BIT_SET_EXTENSION);
+			FSDataOutputStream outputStream = fs.create(new Path(bitSetPath + CoverageLog.OLD_EXTENSION));
+			outputStream.write(out.getData(), 0, out.getLength());
+			outputStream.close();
+			fs.delete(bitSetPath, false);
+			fs.create(CoverageLog.getTempPath(bitSetPath)).close();
+			
+			Coverage coverage = new Coverage(fs);
+			coverage.load();
+			
+			for (Story story : coverage.getStories()) {
+				assertEquals(story.name.equals("story0") ? bitmap : new CoverageBitmap(), story.bitSet);
+			}
+			
+			assertFalse(fs.exists(CoverageLog.getTempPath(bitSetPath)));
+			
+			outputStream = fs.create(bitSetPath, true);
+			outputStream.write(out.getData(), 0, out.getLength() - 2);
+			outputStream.close();
+			
+			try {
+				new Coverage(fs).load();
+				fail("Loaded a truncated BitSet file");
+			} catch (IOException e) {
+				// Expected
+			}
+		} finally {
+			MonkeyUtils.prefix = prefix;
+			fs.delete(new Path(directory.getPath()), true);
+		}
+	}
+	
+	/**
+	 * Checks that a snapshot where a story has nothing covered yet loads back, as it does
+	 * early in every run
+	 */
+	@Test
+	public void coverageSnapshotReload() throws IOException {
+		File directory = File.createTempFile("coverage", "");
+		directory.delete();
+		
+		String prefix = MonkeyUtils.prefix;
+		int snapshotInterval = CoverageLog.snapshotInterval;
+		FileSystem fs = FileSystem.getLocal(new JobConf());
+		
+		try {
+			MonkeyUtils.prefix = directory.getPath() + "/";
+			CoverageLog.snapshotInterval = 1;
+			
+			String[] texts = { "abcdefghijklmnopqrstuvwxyz", "zyxwvutsrqponmlkjihgfedcba" };
+			
+			for (int i = 0; i < texts.length; i++) {
+				FSDataOutputStream outputStream = fs.create(new Path(MonkeyUtils.prefix + Story.STORIES_DIRECTORY + "story" + i + Story.STORY_EXTENSION));
+				outputStream.writeBytes(texts[i]);
+				outputStream.close();
+			}
+			
+			Coverage coverage = new Coverage(fs);
+			coverage.load();
+			
+			// Only the first story has anything covered when the snapshot is written
+			QuoteCodec codec = new QuoteCodec(MonkeyUtils.QUOTE_SIZE);
+			coverage.markFound(new QuoteArrayWritable(codec.encode(texts[0].substring(0, MonkeyUtils.QUOTE_SIZE))));
+			coverage.save(new Path(MonkeyUtils.prefix + "output/iteration"));
+			
+			Coverage reloaded = new Coverage(fs);
+			reloaded.load();
+			
+			for (int i = 0; i < texts.length; i++) {
+				Story story = reloaded.getStories()[i];
+				assertEquals(coverage.getStories()[i].bitSet, story.bitSet);
+				assertEquals(!story.name.equals("story0"), story.bitSet.isEmpty());
+			}
+		} finally {
+			MonkeyUtils.prefix = prefix;
+			CoverageLog.snapshotInterval = snapshotInterval;
+			fs.delete(new Path(directory.getPath()), true);
+		}
+	}
+	
+	/**
+	 * Checks that the counters kept as ranges are marked match counting the gaps again
+	 */
+	@Test
+	public void coverageCounters() {
+		MersenneTwisterFast random = new MersenneTwisterFast(13);
+		int size = 50000;
+		
+		CoverageBitmap bitmap = new CoverageBitmap();
+		bitmap.set(100, 200);
+		CoverageCounters counters = new CoverageCounters(bitmap, size);
+		
+		assertEquals(100, counters.getFound());
+		assertEquals(2, counters.getGaps());
+		
+		for (int round = 0; round < 20000; round++) {
+			int start = random.nextInt(size);
+			int end = Math.min(start + 1 + random.nextInt(round % 100 == 0 ? 2000 : 12), size);
+			
+			int before = bitmap.cardinality();
+			int added = counters.set(bitmap, start, end);
+			
+			assertEquals(bitmap.cardinality() - before, added);
+			assertEquals(bitmap.cardinality(), counters.getFound());
+			
+			if (round % 1000 == 0 || round == 19999) {
+				int[] histogram = new int[CoverageCounters.BUCKETS];
+				int gaps = 0;
+				
+				for (int gapStart = bitmap.nextClearBit(0); gapStart < size; ) {
+					int gapEnd = bitmap.nextSetBit(gapStart);
+					gapEnd = gapEnd < 0 ? size : gapEnd;
+					
+					histogram[31 - Integer.numberOfLeadingZeros(gapEnd - gapStart)]++;
+					gaps++;
+					gapStart = bitmap.nextClearBit(gapEnd);
+				}
+				
+				assertEquals(gaps, counters.getGaps());
+				assertEquals(size - bitmap.cardinality(), counters.getLeft());
+				
+				for (int bucket = 0; bucket < CoverageCounters.BUCKETS; bucket++) {
+					assertEquals(histogram[bucket], counters.getGaps(bucket));
+				}
+			}
+		}
+		
+		System.out.println(counters.getGaps() + " gaps " + counters.describeGaps());
+	}
+	
+	/**
+	 * Checks that only newly covered ranges are logged, that a snapshot drops the deltas
+	 * it includes and that replaying the rest on top of the snapshot gets back to the same BitSets
+	 */
+	@Test
+	public void coverageLog() throws IOException {
+		File directory = File.createTempFile("coverage", "");
+		directory.delete();
+		
+		String prefix = MonkeyUtils.prefix;
+		int snapshotInterval = CoverageLog.snapshotInterval;
+		FileSystem fs = FileSystem.getLocal(new JobConf());
+		
+		try {
+			MonkeyUtils.prefix = directory.getPath() + "/";
+			CoverageLog.snapshotInterval = 2;
+			
+			String[] texts = { "abcdeabc", "fghij" };
+			Story[] stories = new Story[texts.length];
+			
+			for (int i = 0; i < texts.length; i++) {
+				stories[i] = new Story();
+				stories[i].name = "story" + i;
+				stories[i].story = texts[i];
+				stories[i].bitSet = new CoverageBitmap();
+			}
+			
+			QuoteCodec codec = new QuoteCodec(3);
+			Corpus corpus = new Corpus(stories, codec);
+			CoverageLog log = new CoverageLog(fs, stories);
+			log.clear();
+			
+			corpus.markFound(codec.encode("abc"), log);
+			assertEquals(2, log.getPending());
+			log.write();
+			
+			// Already covered so there's nothing new to log
+			corpus.markFound(codec.encode("abc"), log);
+			corpus.markFound(codec.encode("bcd"), log);
+			assertEquals(1, log.getPending());
+			log.write();
+			
+			assertTrue(log.isSnapshotDue());
+			CoverageBitmap[] snapshot = { new CoverageBitmap(stories[0].bitSet), new CoverageBitmap(stories[1].bitSet) };
+			log.snapshotWritten();
+			
+			corpus.markFound(codec.encode("hij"), log);
+			
+			// A delta that can't be written keeps its ranges for the next try
+			Path blockedPath = CoverageLog.getTempPath(new Path(MonkeyUtils.prefix + Story.STORIES_DIRECTORY + 
+					CoverageLog.LOG_DIRECTORY + "00000000000000000002.delta"));
+			fs.mkdirs(new Path(blockedPath, "blocked"));
+			
+			try {
+				log.write();
+				fail("Wrote a delta over a directory");
+			} catch (IOException e) {
+				// Expected
+			}
+			
+			assertEquals(1, log.getPending());
+			fs.delete(blockedPath, true);
+			
+			log.write();
+			assertFalse(log.isSnapshotDue());
+			
+			// Die while replacing the snapshot file, after the old copy was moved aside
+			Path snapshotPath = new Path(MonkeyUtils.prefix + Story.STORIES_DIRECTORY + CoverageLog.LOG_DIRECTORY + CoverageLog.SNAPSHOT_FILE);
+			assertTrue(fs.rename(snapshotPath, new Path(snapshotPath + CoverageLog.OLD_EXTENSION)));
+			fs.create(CoverageLog.getTempPath(snapshotPath)).close();
+			
+			// Recover from the snapshot
+			Story[] recovered = new Story[texts.length];
+			
+			for (int i = 0; i < texts.length; i++) {
+				recovered[i] = new Story();
+				recovered[i].name = stories[i].name;
+				recovered[i].story = texts[i];
+				recovered[i].bitSet = snapshot[i];
+			}
+			
+			CoverageLog recoveredLog = new CoverageLog(fs, recovered);
+			assertEquals(1, recoveredLog.replay());
+			assertTrue(fs.exists(snapshotPath));
+			assertFalse(fs.exists(CoverageLog.getTempPath(snapshotPath)));
+			
+			for (int i = 0; i < texts.length; i++) {
+				assertEquals(stories[i].bitSet, recovered[i].bitSet);
+			}
+			
+			// The next delta carries on from the last one
+			corpus.markFound(codec.encode("efg"), recoveredLog);
+			assertEquals("00000000000000000003.delta", recoveredLog.write().getName());
+		} finally {
+			MonkeyUtils.prefix = prefix;
+			CoverageLog.snapshotInterval = snapshotInterval;
+			fs.delete(new Path(directory.getPath()), true);
+		}
+	}
+	
+	/**
+	 * Checks that threads asking for the same artifact at once share one load and that
+	 * the least recently used artifact is dropped when the cache is full
+	 */
+	@Test
+	public void artifactCacheSingleFlight() throws Exception {
+		final ArtifactCache cache = new ArtifactCache(100);
+		final AtomicInteger loads = new AtomicInteger();
+		
+		final ArtifactCache.Loader<Integer> loader = new ArtifactCache.Loader<Integer>() {
+			@Override
+			public Integer load() throws IOException {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				
+				return loads.incrementAndGet();
+			}
+			
+			@Override
+			public long getSizeInBytes(Integer artifact) {
+				return 40;
+			}
+		};
+		
+		Thread[] threads = new Thread[8];
+		final AtomicInteger wrong = new AtomicInteger();
+		
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						if (cache.get("a", loader) != 1) {
+							wrong.incrementAndGet();
+						}
+					} catch (IOException e) {
+						wrong.incrementAndGet();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		assertEquals(1, loads.get());
+		assertEquals(0, wrong.get());
+		
+		// b then a are used, so c pushes out b
+		cache.get("b", loader);
+		cache.get("a", loader);
+		cache.get("c", loader);
+		
+		assertEquals(3, loads.get());
+		assertEquals(80, cache.getTotalBytes());
+		assertEquals(1, cache.get("a", loader).intValue());
+		assertEquals(4, cache.get("b", loader).intValue());
+	}
+	
+	/**
+	 * Creates a filter that passes every quote, so every candidate the monkeys type is kept
+	 * @return The filter
+	 */
+	private static QuoteFilter newEverythingFilter() {
+		return new QuoteFilter() {
+			@Override
+			public boolean membershipTest(long quote) {
+				return true;
+			}
+			
+			@Override
+			public long getSizeInBytes() {
+				return 0;
+			}
+		};
+	}
+	
+	/**
+	 * Checks that the threads split an iteration between them without losing or
+	 * repeating any candidates, and times them against one thread
+	 */
+	@Test
+	public void parallelMapper() throws IOException {
+		QuoteFilter everything = newEverythingFilter();
+		int letters = (int) MonkeyMapper.MAP_ITERATION_SIZE;
+		
+		int threads = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+		MonkeyMapper mapper = new MonkeyMapper();
+		JobConf conf = new JobConf();
+		conf.setInt(MonkeyMapper.THREADS_PROPERTY, threads);
+		mapper.configure(conf);
+		
+		try {
+			
+			for (int i = 0; i < 3; i++) {
+				WorkUnit unit = new WorkUnit(42, i, 0);
+				QuoteArrayWritable outputArray = new QuoteArrayWritable();
+				mapper.typeInParallel(everything, outputArray, letters, unit);
+				
+				// The same as each monkey typing its share of the unit on its own, one after the other
+				QuoteArrayWritable expected = new QuoteArrayWritable();
+				int share = letters / threads;
+				
+				for (int monkey = 0; monkey < threads; monkey++) {
+					MonkeyMapper single = new MonkeyMapper();
+					single.startUnit(unit, monkey);
+					single.typeStream(everything, expected, 
+							monkey == threads - 1 ? letters - (share * monkey) : share);
+				}
+				
+				assertEquals(letters, outputArray.size());
+				assertEquals(expected, outputArray);
+			}
+			
+			RollingBloomFilter rollingBloomFilter = new RollingBloomFilter(1 << 20, 6);
+			QuoteArrayWritable outputArray = new QuoteArrayWritable();
+			
+			Stopwatch parallelTime = new Stopwatch();
+			parallelTime.start();
+			
+			for (int i = 0; i < 20; i++) {
+				mapper.typeInParallel(rollingBloomFilter, outputArray, letters, null);
+			}
+			
+			parallelTime.stop();
+			
+			Stopwatch singleTime = new Stopwatch();
+			singleTime.start();
+			
+			for (int i = 0; i < 20; i++) {
+				mapper.typeStream(rollingBloomFilter, outputArray, letters);
+			}
+			
+			singleTime.stop();
+			
+			System.out.println(threads + " threads " + parallelTime.time() + " ms 1 thread " + 
+					singleTime.time() + " ms");
+		} finally {
+			mapper.close();
+		}
+	}
+	
+	/**
+	 * Checks that a work unit always types the same letters, that other units type
+	 * different ones and that the keys in a run don't repeat
+	 */
+	@Test
+	public void workUnits() {
+		QuoteFilter everything = newEverythingFilter();
+		
+		WorkUnit unit = new WorkUnit(42, 3, 7);
+		
+		QuoteArrayWritable first = new QuoteArrayWritable();
+		MonkeyMapper mapper = new MonkeyMapper();
+		mapper.startUnit(unit, 0);
+		mapper.typeStream(everything, first, 10000);
+		
+		// A different monkey that already typed something else, like a retried task
+		QuoteArrayWritable second = new QuoteArrayWritable();
+		MonkeyMapper retry = new MonkeyMapper();
+		retry.typeStream(everything, second, 500);
+		second.clear();
+		retry.startUnit(unit, 0);
+		retry.typeStream(everything, second, 10000);
+		
+		assertEquals(first, second);
+		
+		WorkUnit[] others = { new WorkUnit(43, 3, 7), new WorkUnit(42, 4, 7), new WorkUnit(42, 3, 8) };
+		
+		for (WorkUnit other : others) {
+			QuoteArrayWritable otherArray = new QuoteArrayWritable();
+			MonkeyMapper otherMapper = new MonkeyMapper();
+			otherMapper.startUnit(other, 0);
+			otherMapper.typeStream(everything, otherArray, 10000);
+			
+			assertFalse(first.equals(otherArray));
+			assertTrue(unit.getSeed(0) != other.getSeed(0));
+		}
+		
+		assertTrue(unit.getSeed(0) != unit.getSeed(1));
+		
+		HashSet<Long> keys = new HashSet<Long>();
+		
+		for (long iteration = 0; iteration < 100; iteration++) {
+			for (long split = 0; split < 100; split++) {
+				assertTrue(keys.add(new WorkUnit(42, iteration, split * 1000).getKey()));
+			}
+		}
+	}
+	
+	/**
+	 * Checks that the batch size moves toward the target duration no faster than the maximum
+	 * change, stays between the limits and that limits a map call can't type are refused
+	 */
+	@Test
+	public void batchSizer() {
+		JobConf conf = new JobConf();
+		conf.setLong(BatchSizer.TARGET_MILLIS_PROPERTY, 10000);
+		BatchSizer sizer = new BatchSizer(conf);
+		
+		assertEquals(MonkeyMapper.MAP_ITERATION_SIZE, sizer.getBatchSize());
+		
+		// 4 calls typing 1,000 candidates/ms would take 1 second each so the size doubles
+		assertEquals(MonkeyMapper.MAP_ITERATION_SIZE * 2, sizer.update(MonkeyMapper.MAP_ITERATION_SIZE * 4, 4000));
+		// 2,000,000 candidates in 10 seconds is right on the target
+		assertEquals(MonkeyMapper.MAP_ITERATION_SIZE * 2, sizer.update(MonkeyMapper.MAP_ITERATION_SIZE * 2, 10000));
+		// Nothing typed leaves it alone
+		assertEquals(MonkeyMapper.MAP_ITERATION_SIZE * 2, sizer.update(0, 0));
+		
+		// Very slow calls halve it each time until it reaches the minimum
+		for (int i = 0; i < 10; i++) {
+			sizer.update(1000, 100000);
+		}
+		
+		assertEquals(BatchSizer.DEFAULT_MIN_BATCH_SIZE, sizer.getBatchSize());
+		
+		// Very fast calls double it each time until it reaches the maximum
+		for (int i = 0; i < 20; i++) {
+			sizer.update(Integer.MAX_VALUE, 1);
+		}
+		
+		assertEquals(BatchSizer.DEFAULT_MAX_BATCH_SIZE, sizer.getBatchSize());
+		
+		// A map call can't type more letters than fit in an array
+		conf.setLong(BatchSizer.MAX_BATCH_SIZE_PROPERTY, Integer.MAX_VALUE + 1L);
+		
+		try {
+			new BatchSizer(conf);
+			fail("Allowed batches too big for a map call");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+	
+	/**
+	 * Checks that the local engine has each monkey type a map call's worth of letters and
+	 * keeps every quote it typed when everything matches
+	 */
+	@Test
+	public void localEngine() {
+		QuoteFilter everything = newEverythingFilter();
+		
+		LocalMonkeyEngine engine = new LocalMonkeyEngine(3);
+		
+		// The filter lets everything through, so the reducer mustn't double check it against the works
+		JobConf conf = new JobConf();
+		conf.set(MonkeyReducer.FILTER_TYPE_PROPERTY, QuoteFilter.Type.HASH_SET.name());
+		engine.setConf(conf);
+		
+		try {
+			for (int i = 0; i < 2; i++) {
+				engine.typeIteration(everything);
+				
+				QuoteArrayWritable[] results = engine.getResults();
+				assertEquals(3, results.length);
+				
+				for (QuoteArrayWritable result : results) {
+					long typed = 0;
+					
+					for (int j = 0; j < result.size(); j++) {
+						typed += result.getCount(j);
+					}
+					
+					assertEquals(MonkeyMapper.MAP_ITERATION_SIZE, typed);
+				}
+			}
+		} finally {
+			engine.close();
+		}
+	}
+	
+	/**
+	 * Checks that every mappable filter gives the same answers after being written to
+	 * a file and mapped back in
+	 */
+	@Test
+	public void mappedFilters() throws IOException {
+		MersenneTwisterFast random = new MersenneTwisterFast(7);
+		long[] quotes = new long[1000];
+		
+		for (int i = 0; i < quotes.length; i++) {
+			quotes[i] = random.nextInt(5000);
+		}
+		
+		RollingBloomFilter rollingBloomFilter = new RollingBloomFilter(10000, 5);
+		BlockedBloomFilter blockedBloomFilter = new BlockedBloomFilter(10000, 5);
+		QuoteHashSet quoteHashSet = new QuoteHashSet();
+		BuildableQuoteFilter[] builtFilters = { rollingBloomFilter, blockedBloomFilter, quoteHashSet };
+		
+		for (BuildableQuoteFilter filter : builtFilters) {
+			for (long quote : quotes) {
+				filter.add(quote);
+			}
+		}
+		
+		MappableQuoteFilter[] filters = { rollingBloomFilter, blockedBloomFilter, quoteHashSet, 
+				new EytzingerQuoteSet(quotes.clone()) };
+		MappableQuoteFilter[] mappedFilters = { new RollingBloomFilter(), new BlockedBloomFilter(), 
+				new QuoteHashSet(), new EytzingerQuoteSet() };
+		
+		for (int i = 0; i < filters.length; i++) {
+			File file = File.createTempFile("monkeys", ".filter");
+			file.deleteOnExit();
+			
+			DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(file));
+			filters[i].write(outputStream);
+			outputStream.close();
+			
+			mappedFilters[i].wrap(MonkeyUtils.mapFile(file));
+			
+			for (long quote = 0; quote < 6000; quote++) {
+				assertEquals(filters[i].getClass().getSimpleName() + " quote " + quote, 
+						filters[i].membershipTest(quote), mappedFilters[i].membershipTest(quote));
+			}
+		}
+	}
+	
+	/**
+	 * Checks that the blocked Bloom Filter finds everything added to it and that its
+	 * false positive rate is close to what it was sized for
+	 */
+	@Test
+	public void blockedBloomFalsePositives() {
+		double falsePositiveRate = 0.01;
+		int entries = 100000;
+		
+		BlockedBloomFilter bloomFilter = BlockedBloomFilter.forFalsePositiveRate(entries, falsePositiveRate);
+		
+		// Even quotes are added, odd ones are not
+		for (long quote = 0; quote < 2 * entries; quote += 2) {
+			bloomFilter.add(quote);
+		}
+		
+		int falsePositives = 0;
+		
+		for (long quote = 0; quote < 2 * entries; quote += 2) {
+			assertTrue("Added quote not found " + quote, bloomFilter.membershipTest(quote));
+			
+			if (bloomFilter.membershipTest(quote + 1)) {
+				falsePositives++;
+			}
+		}
+		
+		double measuredRate = (double) falsePositives / entries;
+		
+		System.out.println("Blocked Bloom false positive rate " + measuredRate + " wanted " + falsePositiveRate);
+		assertTrue("False positive rate too high " + measuredRate, measuredRate < falsePositiveRate * 2);
+	}
+	
 	/**
 	 * Runs a cursory test on the mapper
 	 * @throws IOException
@@ -292,10 +1512,10 @@ public class MonkeyMapTests {
 	public void checkMonkeyMapper() throws IOException {
 		MonkeyMapper mapper = new MonkeyMapper();
 
-		OutputCollector<LongWritable, StringArrayWritable> output = mock(OutputCollector.class);
+		OutputCollector<LongWritable, QuoteArrayWritable> output = mock(OutputCollector.class);
 		mapper.map(null, null, output, null);
 		verify(output, atLeastOnce()).collect(any(LongWritable.class),
-				any(StringArrayWritable.class));
+				any(QuoteArrayWritable.class));
 	}
 
 	/**
@@ -308,37 +1528,106 @@ public class MonkeyMapTests {
 
 		LongWritable key = new LongWritable(1);
 		
-		StringArrayWritable stringArrayWritable = new StringArrayWritable();
+		QuoteCodec codec = new QuoteCodec(MonkeyUtils.QUOTE_SIZE);
 		
 		String findStringBase = "akingbreastwhopleadforlo";
 		String findString = findStringBase.substring(0, MonkeyUtils.QUOTE_SIZE);
 		String findStringOther = findStringBase.substring(0, MonkeyUtils.QUOTE_SIZE - 1);
 		
-		Text[] texts = {
-				new Text(findString),
-				new Text(findStringOther + "1"),
-				new Text(findStringOther + "2"),
-				new Text(findStringOther + "3"),
-				new Text(findStringOther + "4"),
-				new Text(findStringOther + "5")
-		};
-		
-		byte[] randomBytes = new byte[MonkeyUtils.QUOTE_SIZE];
-		MonkeyUtils.getRandomBytes(randomBytes);
-		String randomString = MonkeyUtils.getStringForBytes(randomBytes);
+		QuoteArrayWritable quotes = new QuoteArrayWritable(
+				codec.encode(findString),
+				codec.encode(findStringOther + "q"),
+				codec.encode(findStringOther + "x"),
+				codec.encode(findStringOther + "z"),
+				codec.encode(findStringOther + "j"),
+				codec.encode(findStringOther + "v"));
 		
-		stringArrayWritable.set(texts);
-		ArrayList<StringArrayWritable> arrayList = new ArrayList<StringArrayWritable>();
-		arrayList.add(stringArrayWritable);
+		ArrayList<QuoteArrayWritable> arrayList = new ArrayList<QuoteArrayWritable>();
+		arrayList.add(quotes);
 		
-		OutputCollector<LongWritable, StringArrayWritable> output = mock(OutputCollector.class);
+		OutputCollector<LongWritable, QuoteArrayWritable> output = mock(OutputCollector.class);
 
+		// Only a Bloom Filter's false positives need double checking
+		JobConf conf = new JobConf();
+		conf.set(MonkeyReducer.FILTER_TYPE_PROPERTY, QuoteFilter.Type.BLOOM.name());
+		reducer.configure(conf);
+		
 		reducer.reduce(key, arrayList.iterator(), output, (Reporter) null);
 
-		StringArrayWritable arrayWritable = new StringArrayWritable();
-		arrayWritable.set(new Text[] {new Text(findString)});
+		verify(output).collect(key, new QuoteArrayWritable(codec.encode(findString)));
+	}
+	
+	/**
+	 * Checks that sorting and merging folds duplicates into counts.  Each map call does this
+	 * before it emits its one key, so nothing downstream has to
+	 * @throws IOException
+	 */
+	@Test
+	public void quoteArrayMerge() throws IOException {
+		QuoteArrayWritable merged = new QuoteArrayWritable(7, 3, 7, 5);
+		merged.add(5, 4);
+		merged.add(9);
+		merged.sortAndMerge();
+		
+		QuoteArrayWritable expected = new QuoteArrayWritable();
+		expected.add(3);
+		expected.add(5, 5);
+		expected.add(7, 2);
+		expected.add(9);
 		
-		verify(output).collect(key, arrayWritable);
+		assertEquals(expected, merged);
+		
+		// Counts survive the trip through the Writable
+		DataOutputBuffer outputBuffer = new DataOutputBuffer();
+		expected.write(outputBuffer);
+		
+		DataInputBuffer inputBuffer = new DataInputBuffer();
+		inputBuffer.reset(outputBuffer.getData(), outputBuffer.getLength());
+		
+		QuoteArrayWritable readQuotes = new QuoteArrayWritable();
+		readQuotes.readFields(inputBuffer);
+		
+		assertEquals(expected, readQuotes);
+	}
+	
+	/**
+	 * Checks that quotes survive packing, unpacking and a round trip through the Writable
+	 * @throws IOException
+	 */
+	@Test
+	public void quotePacking() throws IOException {
+		QuoteCodec codec = new QuoteCodec(MonkeyUtils.QUOTE_SIZE);
+		QuoteArrayWritable quotes = new QuoteArrayWritable();
+		String[] strings = new String[100];
+		
+		byte[] randomBytes = new byte[MonkeyUtils.QUOTE_SIZE];
+		
+		for (int i = 0; i < strings.length; i++) {
+			MonkeyUtils.getRandomBytes(randomBytes);
+			strings[i] = MonkeyUtils.getStringForBytes(randomBytes);
+			
+			long quote = codec.encode(randomBytes, 0);
+			assertEquals(quote, codec.encode(strings[i]));
+			assertEquals(strings[i], codec.toString(quote));
+			assertTrue("Packed quote too big", quote >= 0 && quote < codec.getRange());
+			
+			quotes.add(quote);
+		}
+		
+		DataOutputBuffer outputBuffer = new DataOutputBuffer();
+		quotes.write(outputBuffer);
+		
+		DataInputBuffer inputBuffer = new DataInputBuffer();
+		inputBuffer.reset(outputBuffer.getData(), outputBuffer.getLength());
+		
+		QuoteArrayWritable readQuotes = new QuoteArrayWritable();
+		readQuotes.readFields(inputBuffer);
+		
+		assertEquals(quotes, readQuotes);
+		
+		for (int i = 0; i < strings.length; i++) {
+			assertEquals(strings[i], codec.toString(readQuotes.get(i)));
+		}
 	}
 
 	/**
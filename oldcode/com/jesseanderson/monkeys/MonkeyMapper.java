@@ -1,25 +1,23 @@
 package com.jesseanderson.monkeys;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.net.URI;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
-import org.apache.hadoop.util.bloom.BloomFilter;
-import org.apache.hadoop.util.bloom.Key;
 
 /*
  * Copyright 2011 Jesse Anderson
@@ -36,60 +34,395 @@ import org.apache.hadoop.util.bloom.Key;
  */
 
 /**
- * Performs the random string generation and run against a Bloom Filter to see if the
- * random string is found in the works.
+ * Performs the random string generation and run against a quote filter to see if the
+ * random string is found in the works.  Quotes are packed into longs (see QuoteCodec)
+ * from generation through to the output so nothing is allocated per candidate.
  */
 public class MonkeyMapper extends MapReduceBase implements
-		Mapper<LongWritable, Text, LongWritable, StringArrayWritable> {
-	/** The current sub-iteration of the mapper */
-	public static AtomicLong iteration = new AtomicLong();
-	/** The number of iterations to run in a sub-iteration */
-	// TODO: This should be a parameter
+		Mapper<LongWritable, Text, LongWritable, QuoteArrayWritable> {
+	/** The number of iterations to run in a sub-iteration when the driver doesn't set one */
 	public static final long MAP_ITERATION_SIZE = 1000000;
-	/** A thread safe reference to the bloom filter so it is only loaded once */
-	private static AtomicReference<BloomFilter> bloomFilter = new AtomicReference<BloomFilter>();
+	/** The JobConf property for the number of letters each map call types, set by the driver's BatchSizer */
+	public static final String BATCH_SIZE_PROPERTY = "monkeys.map.batch.size";
+	/** The JobConf property for whether the monkeys type one continuous stream, true by default */
+	public static final String SLIDING_WINDOW_PROPERTY = "monkeys.map.sliding.window";
+	/** The JobConf property for the number of monkeys typing in parallel inside each task */
+	public static final String THREADS_PROPERTY = "monkeys.map.threads";
+	/** The counters each map call reports so the driver can size the next batches and count exactly */
+	public static enum Counter {
+		/** The number of candidates typed and tested */
+		CANDIDATES,
+		/** The number of map calls */
+		MAP_CALLS,
+		/** The time spent typing */
+		TYPING_MILLIS
+	}
+	
+	/** The longest match any monkey in this JVM has typed, reported when it's beaten */
+	private static AtomicInteger longestMatch = new AtomicInteger(MonkeyUtils.QUOTE_SIZE);
+	
+	/** The filter the job tests quotes against, from the driver */
+	private QuoteFilter.Type filterType = MonkeyReducer.DEFAULT_FILTER_TYPE;
+	/** The run this task is part of, from the driver */
+	private long run;
+	/** The iteration of the run this task is part of, from the driver */
+	private long iteration;
+	/** The number of letters each map call types */
+	private int batchSize = (int) MAP_ITERATION_SIZE;
+	/** 
+	 * When true each monkey types one continuous stream of letters and every overlapping
+	 * QUOTE_SIZE window is tested.  That costs one new letter per candidate instead of QUOTE_SIZE.
+	 * When false every candidate is a freshly typed, independent quote.
+	 */
+	private boolean slidingWindow = true;
+	/** 
+	 * The number of monkeys typing in parallel inside each task.  They split each iteration
+	 * and share the task's one filter, so a machine can run a few tasks with many threads
+	 * instead of many tasks that each load the filter
+	 */
+	private int threads = 1;
+	
+	/** This monkey's letter generator, seeded by its work unit.  Null until startUnit is called */
+	private LetterGenerator generator;
+	/** This monkey's stream.  The first QUOTE_SIZE - 1 letters are the end of the previous map call */
+	private byte[] stream;
+	/** True when the stream has to start over because a new work unit started */
+	private boolean fresh = true;
+	/** Packs and rolls the quotes */
+	private QuoteCodec codec = new QuoteCodec(MonkeyUtils.QUOTE_SIZE);
+	/** Follows this monkey's stream through the suffix automaton when that is the filter */
+	private SuffixAutomaton.Matcher matcher;
+	
+	/** The monkeys typing for this task when there's more than one thread.  Each keeps its own stream */
+	private MonkeyMapper[] workers;
+	/** The candidates each worker found this iteration */
+	private QuoteArrayWritable[] workerArrays;
+	/** Runs the workers */
+	private ExecutorService executor;
+	
+	@Override
+	public void configure(JobConf job) {
+		threads = Math.max(job.getInt(THREADS_PROPERTY, 1), 1);
+		long letters = job.getLong(BATCH_SIZE_PROPERTY, MAP_ITERATION_SIZE);
+		
+		// The letters are typed into one array
+		if (letters <= 0 || letters > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(BATCH_SIZE_PROPERTY + " has to be from 1 to " + Integer.MAX_VALUE + 
+					" but is " + letters);
+		}
+		
+		batchSize = (int) letters;
+		slidingWindow = job.getBoolean(SLIDING_WINDOW_PROPERTY, true);
+		filterType = MonkeyReducer.getFilterType(job);
+		run = job.getLong(WorkUnit.RUN_PROPERTY, 0);
+		iteration = job.getLong(WorkUnit.ITERATION_PROPERTY, 0);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
 
 	public void map(LongWritable key, Text value,
-			OutputCollector<LongWritable, StringArrayWritable> output, Reporter reporter)
+			OutputCollector<LongWritable, QuoteArrayWritable> output, Reporter reporter)
 			throws IOException {
-		long iterationLocal = iteration.incrementAndGet();
-		long groupSize = MAP_ITERATION_SIZE * iterationLocal;
+		int letters = batchSize;
+		// The line's offset in the input file is the same every time the split is run
+		WorkUnit unit = new WorkUnit(run, iteration, key != null ? key.get() : 0);
+		
+		QuoteArrayWritable outputArray = new QuoteArrayWritable();
+		
+		// The first thread in the JVM to get here loads the filter, the rest wait for it and share it
+		QuoteFilter localQuoteFilter = MonkeyUtils.getQuoteFilter(filterType, MonkeyReducer.inputFile, 
+				MonkeyUtils.QUOTE_SIZE, MonkeyReducer.prefix, MonkeyReducer.vectorSize, MonkeyReducer.nbHash);
 		
-		ArrayList<Text> outputArray = new ArrayList<Text>();
+		long start = System.nanoTime();
 		
-		BloomFilter localBloomFilter;
+		if (threads > 1) {
+			typeInParallel(localQuoteFilter, outputArray, letters, unit);
+		} else {
+			startUnit(unit, 0);
+			type(localQuoteFilter, outputArray, letters);
+		}
+		
+		if (reporter == null) {
+			reporter = Reporter.NULL;
+		}
+		
+		reporter.incrCounter(Counter.CANDIDATES, letters);
+		reporter.incrCounter(Counter.MAP_CALLS, 1);
+		reporter.incrCounter(Counter.TYPING_MILLIS, (System.nanoTime() - start) / 1000000);
+		
+		// Sorted quotes are only a few bytes each once written as differences
+		outputArray.sortAndMerge();
 		
-		if ((localBloomFilter = bloomFilter.get()) == null) {
-			// Hasn't been initialized yet, load it
-			localBloomFilter = MonkeyUtils.getBloomFilter(MonkeyReducer.inputFile, MonkeyUtils.QUOTE_SIZE, 
-					MonkeyReducer.prefix, MonkeyReducer.vectorSize, MonkeyReducer.nbHash, MonkeyReducer.hashType);
+		output.collect(new LongWritable(unit.getKey()), outputArray);
+		
+		MonkeyUtils.logger.debug("Letters:" + letters + " " + unit);
+	}
+	
+	/**
+	 * Starts this monkey on a work unit.  It types the unit's letters from the start
+	 * instead of carrying on from what it typed before
+	 * @param unit The work unit
+	 * @param monkey The monkey's index in the unit, 0 when there is only one
+	 */
+	void startUnit(WorkUnit unit, int monkey) {
+		generator = unit.newLetterGenerator(monkey);
+		fresh = true;
+		matcher = null;
+	}
+	
+	/**
+	 * Gets this monkey's letter generator
+	 * @return The work unit's generator or the thread's own if no unit was started
+	 */
+	private LetterGenerator getGenerator() {
+		return generator != null ? generator : MonkeyUtils.getLetterGenerator();
+	}
+	
+	/**
+	 * Types with whichever method suits the settings and filter
+	 * @param localQuoteFilter The filter to test against
+	 * @param outputArray The array to add possible matches to
+	 * @param count The number of letters or quotes to type
+	 */
+	void type(QuoteFilter localQuoteFilter, QuoteArrayWritable outputArray, int count) {
+		if (slidingWindow && localQuoteFilter instanceof SuffixAutomaton) {
+			typeMatches((SuffixAutomaton) localQuoteFilter, outputArray, count);
+		} else if (slidingWindow) {
+			typeStream(localQuoteFilter, outputArray, count);
+		} else {
+			typeQuotes(localQuoteFilter, outputArray, count);
+		}
+	}
+	
+	/**
+	 * Splits the letters between threads workers and merges what they found.
+	 * Each worker is a monkey with its own stream, letter generator and buffers, and
+	 * they all share the one read only filter
+	 * @param localQuoteFilter The filter to test against
+	 * @param outputArray The array to add possible matches to
+	 * @param letters The number of letters or quotes to type between them
+	 * @param unit The work unit each worker starts with its own seed.  Null to carry on as before
+	 */
+	void typeInParallel(final QuoteFilter localQuoteFilter, QuoteArrayWritable outputArray, int letters, 
+			WorkUnit unit) throws IOException {
+		if (workers == null || workers.length != threads) {
+			workers = new MonkeyMapper[threads];
+			workerArrays = new QuoteArrayWritable[threads];
 			
-			bloomFilter.set(localBloomFilter);
+			for (int i = 0; i < threads; i++) {
+				workers[i] = new MonkeyMapper();
+				workers[i].slidingWindow = slidingWindow;
+				workerArrays[i] = new QuoteArrayWritable();
+			}
+			
+			close();
+			executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "monkey-" + count.incrementAndGet());
+					// Don't keep the task's JVM alive if close isn't called
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 		}
 		
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(threads);
+		int share = letters / threads;
+		
+		for (int i = 0; i < threads; i++) {
+			final MonkeyMapper worker = workers[i];
+			final QuoteArrayWritable workerArray = workerArrays[i];
+			// The last worker picks up what doesn't divide evenly
+			final int count = i == threads - 1 ? letters - (share * (threads - 1)) : share;
+			
+			if (unit != null) {
+				worker.startUnit(unit, i);
+			}
+			
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					workerArray.clear();
+					worker.type(localQuoteFilter, workerArray, count);
+					return null;
+				}
+			});
+		}
+		
+		try {
+			for (Future<Void> future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while the monkeys were typing");
+		} catch (ExecutionException e) {
+			throw new IOException("A monkey failed", e.getCause());
+		}
+		
+		for (QuoteArrayWritable workerArray : workerArrays) {
+			outputArray.addAll(workerArray);
+		}
+	}
+	
+	/**
+	 * Generates independent quotes and tests each one
+	 * @param localQuoteFilter The filter to test the quotes against
+	 * @param outputArray The array to add possible matches to
+	 * @param quotes The number of quotes to type
+	 */
+	void typeQuotes(QuoteFilter localQuoteFilter, QuoteArrayWritable outputArray, int quotes) {
 		// Generate the random output
 		byte[] randomBytes = new byte[MonkeyUtils.QUOTE_SIZE];
+		LetterGenerator generator = getGenerator();
 		
-		for (int i = 0; i < MAP_ITERATION_SIZE; i++) {
-			MonkeyUtils.getRandomBytes(randomBytes);
+		for (int i = 0; i < quotes; i++) {
+			generator.fill(randomBytes);
+			long quote = codec.encode(randomBytes, 0);
 			
-			// See if the Bloom Filter say it might be there
-			if (localBloomFilter.membershipTest(new Key(randomBytes))) {
-				// It might be there, send on to reducer for double check
-				String randomString = MonkeyUtils.getStringForBytes(randomBytes);
-				
-				// System.out.println("Membership test passed for \"" + randomString + "\"");
+			// See if the filter says it might be there
+			if (localQuoteFilter.membershipTest(quote)) {
+				// It might be there, send on to reducer
+				outputArray.add(quote);
+			}
+		}
+	}
+	
+	/**
+	 * Continues this monkey's stream and tests every QUOTE_SIZE window that ends in one
+	 * of the new letters.  The window's rolling hash is updated in O(1) per letter and
+	 * the filter probes come from it alone.
+	 * @param localQuoteFilter The filter to test the windows against
+	 * @param outputArray The array to add possible matches to
+	 * @param newLetters The number of letters to type
+	 */
+	void typeStream(QuoteFilter localQuoteFilter, QuoteArrayWritable outputArray, int newLetters) {
+		int carried = MonkeyUtils.QUOTE_SIZE - 1;
+		
+		LetterGenerator generator = getGenerator();
+		
+		prepareStream(generator, newLetters);
+		generator.fill(stream, carried, newLetters);
+		
+		long quote = codec.encode(stream, 0);
+		
+		if (localQuoteFilter.membershipTest(quote)) {
+			outputArray.add(quote);
+		}
+		
+		for (int i = 1; i < newLetters; i++) {
+			quote = codec.roll(quote, stream[i - 1], stream[i + carried]);
+			
+			// See if the filter says it might be there
+			if (localQuoteFilter.membershipTest(quote)) {
+				// It might be there, send on to reducer
+				outputArray.add(quote);
+			}
+		}
+		
+		// Keep the end of the stream so the next call's windows continue from it
+		System.arraycopy(stream, newLetters, stream, 0, carried);
+	}
+	
+	/**
+	 * Continues this monkey's stream through the suffix automaton.  Every letter that
+	 * leaves at least QUOTE_SIZE letters of the stream matching the works adds the last
+	 * QUOTE_SIZE letters, which are certainly in the works.  Matches longer than any seen
+	 * before are logged.
+	 * @param automaton The automaton over the works
+	 * @param outputArray The array to add the matches to
+	 * @param newLetters The number of letters to type
+	 */
+	void typeMatches(SuffixAutomaton automaton, QuoteArrayWritable outputArray, int newLetters) {
+		int carried = MonkeyUtils.QUOTE_SIZE - 1;
+		
+		LetterGenerator generator = getGenerator();
+		
+		prepareStream(generator, newLetters);
+		
+		if (matcher == null) {
+			// The matcher starts with nothing matched
+			matcher = automaton.newMatcher();
+			
+			for (int i = 0; i < carried; i++) {
+				matcher.next(stream[i]);
+			}
+		}
+		
+		generator.fill(stream, carried, newLetters);
+		
+		long quote = 0;
+		
+		for (int i = 0; i < carried; i++) {
+			quote = codec.append(quote, stream[i]);
+		}
+		
+		for (int i = carried; i < stream.length; i++) {
+			quote = codec.append(quote, stream[i]);
+			
+			int matched = matcher.next(stream[i]);
+			
+			if (matched >= MonkeyUtils.QUOTE_SIZE) {
+				outputArray.add(quote);
 				
-				outputArray.add(new Text(randomString));
+				if (matched > longestMatch.get()) {
+					reportLongest(matched, i + 1);
+				}
 			}
 		}
 		
-		// Create StringArrayWritable containing all of the random words found
-		StringArrayWritable stringArrayWritable = new StringArrayWritable();
-		stringArrayWritable.set(outputArray.toArray(new Text[outputArray.size()]));
+		// Keep the end of the stream so the next call's windows continue from it
+		System.arraycopy(stream, newLetters, stream, 0, carried);
+	}
+	
+	/**
+	 * Makes room in the stream for the new letters, keeping the letters carried from the
+	 * last call.  When a work unit starts the monkey types the start of the first window
+	 * @param generator The letter generator
+	 * @param newLetters The number of letters about to be typed
+	 */
+	private void prepareStream(LetterGenerator generator, int newLetters) {
+		int carried = MonkeyUtils.QUOTE_SIZE - 1;
+		
+		if (stream == null) {
+			stream = new byte[carried + newLetters];
+		} else if (stream.length != carried + newLetters) {
+			stream = Arrays.copyOf(stream, carried + newLetters);
+		}
 		
-		output.collect(new LongWritable(groupSize), stringArrayWritable);
+		if (fresh) {
+			generator.fill(stream, 0, carried);
+			fresh = false;
+		}
+	}
+	
+	/**
+	 * Logs a match that is longer than any seen before
+	 * @param matched The number of letters matched
+	 * @param end The index in the stream just past the match
+	 */
+	private void reportLongest(int matched, int end) {
+		int longest;
 		
-		System.out.println("Iteration:" + iterationLocal + " groupSize:" + groupSize);
+		while (matched > (longest = longestMatch.get())) {
+			if (longestMatch.compareAndSet(longest, matched)) {
+				// Earlier calls' letters are gone so only the end of a very long match can be shown
+				int start = Math.max(end - matched, 0);
+				String match = new String(stream, start, end - start);
+				
+				MonkeyUtils.logger.error("Longest match so far " + matched + " letters \"" + match + "\"");
+				System.err.println("Longest match so far " + matched + " letters \"" + match + "\"");
+				return;
+			}
+		}
 	}
 }
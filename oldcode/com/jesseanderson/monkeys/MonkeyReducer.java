@@ -3,10 +3,10 @@ package com.jesseanderson.monkeys;
 import java.io.IOException;
 import java.util.Iterator;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
@@ -28,10 +28,11 @@ import org.apache.hadoop.util.hash.Hash;
  */
 
 /**
- * Takes the possible false positives and checks them against the actual works to see if they are there
+ * Takes the possible false positives and checks them against the actual works to see if they are there.
+ * Quotes arrive and leave packed (see QuoteCodec), sorted and with duplicates merged.
  */
 public class MonkeyReducer extends MapReduceBase implements
-		Reducer<LongWritable, StringArrayWritable, LongWritable, StringArrayWritable> {
+		Reducer<LongWritable, QuoteArrayWritable, LongWritable, QuoteArrayWritable> {
 	// Bloom Filter variables (The Bloom Filter used to be instantiated in this class)
 	/** The vector size for the Bloom Filter */
 	public static final int vectorSize = 100000000;
@@ -41,41 +42,76 @@ public class MonkeyReducer extends MapReduceBase implements
 	public static final int hashType = Hash.MURMUR_HASH;
 	/** The prefix to use when writing out the Bloom Filter */
 	public static final String prefix = "shakespeare1";
+	/** The JobConf property for the filter the mapper tests quotes against, the name of a QuoteFilter.Type */
+	public static final String FILTER_TYPE_PROPERTY = "monkeys.filter.type";
+	/** The filter the mapper tests quotes against when the job doesn't say, a Bloom Filter with the reducer double checking */
+	public static final QuoteFilter.Type DEFAULT_FILTER_TYPE = QuoteFilter.Type.BLOOM;
 	/** The path to use when reading and writing out the Bloom Filter */
 	public static final Path inputFile = new Path(MonkeyUtils.prefix + "pg100.txt");
 	
-	public void reduce(LongWritable key, Iterator<StringArrayWritable> values,
-			OutputCollector<LongWritable, StringArrayWritable> output, Reporter reporter)
+	/** The filter the job's mappers test quotes against.  Exact filters let the double check be skipped */
+	private QuoteFilter.Type filterType = DEFAULT_FILTER_TYPE;
+	
+	@Override
+	public void configure(JobConf job) {
+		filterType = getFilterType(job);
+	}
+	
+	/**
+	 * Gets the filter a job's mappers test quotes against.  The mappers and reducers both
+	 * read it from the job so they always agree on whether there is anything to double check
+	 * @param conf The job's configuration
+	 * @return The filter type
+	 */
+	public static QuoteFilter.Type getFilterType(Configuration conf) {
+		return QuoteFilter.Type.valueOf(conf.get(FILTER_TYPE_PROPERTY, DEFAULT_FILTER_TYPE.name()));
+	}
+	
+	public void reduce(LongWritable key, Iterator<QuoteArrayWritable> values,
+			OutputCollector<LongWritable, QuoteArrayWritable> output, Reporter reporter)
 			throws IOException {
-		// Go through every StringArrayWritable created by the mapper to see which ones are actually in the works
+		QuoteCodec codec = new QuoteCodec(MonkeyUtils.QUOTE_SIZE);
+		QuoteArrayWritable candidates = new QuoteArrayWritable();
+		
+		// Merge every QuoteArrayWritable for the key so each distinct quote is only looked at once
 		while (values.hasNext()) {
-			int passedMembership = 0;
+			candidates.addAll(values.next());
+		}
+		
+		candidates.sortAndMerge();
+		
+		if (filterType.isExact()) {
+			// The mapper's filter has no false positives so there's nothing to double check
+			if (candidates.size() != 0) {
+				output.collect(key, candidates);
+			}
 			
-			StringArrayWritable stringArrayWritable = values.next();
-			Writable[] randomStrings = stringArrayWritable.get();
+			return;
+		}
+		
+		QuoteArrayWritable found = new QuoteArrayWritable();
+		SuffixArray suffixArray = MonkeyUtils.getSuffixArray(inputFile);
+		byte[] letters = new byte[MonkeyUtils.QUOTE_SIZE];
+		
+		// Go through the candidates created by the mapper to see which ones are actually in the works
+		for (int i = 0; i < candidates.size(); i++) {
+			codec.decode(candidates.get(i), letters, 0);
 			
-			for (int i = 0; i < randomStrings.length; i++) {
-				String randomString = ((Text) randomStrings[i]).toString();
-				
-				String input = MonkeyUtils.getText(inputFile, MonkeyUtils.QUOTE_SIZE,
-						prefix, vectorSize, nbHash, hashType);
-				
-				passedMembership++;
+			// See if the random string is actually in the work
+			int[] offsets = suffixArray.find(letters, 0, letters.length);
+			
+			if (offsets.length != 0) {
+				String randomString = new String(letters);
 				
-				// TODO: This part is inefficient and should use Lucene or something faster than indexOf
-				// See if the random string is actually in the work
-				if (input.contains(randomString)) {
-					MonkeyUtils.logger.error("Found one \"" + randomString + "\" in " + key);
-					System.err.println("Found one \"" + randomString + "\" in " + key);
+				MonkeyUtils.logger.error("Found one \"" + randomString + "\" in " + key + " at " + offsets[0]);
+				System.err.println("Found one \"" + randomString + "\" in " + key + " at " + offsets[0]);
 
-					StringArrayWritable arrayWritable = new StringArrayWritable();
-					arrayWritable.set(new Text[] {new Text(randomString)});
-					
-					output.collect(key, arrayWritable);
-				}
+				found.add(candidates.get(i), candidates.getCount(i));
 			}
-			
-			//System.out.println("Passed membership: " + passedMembership);
+		}
+		
+		if (found.size() != 0) {
+			output.collect(key, found);
 		}
 	}
 }
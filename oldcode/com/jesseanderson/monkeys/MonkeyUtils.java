@@ -1,21 +1,25 @@
 package com.jesseanderson.monkeys;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.URI;
 import java.net.URL;
-import java.util.HashMap;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FsUrlStreamHandlerFactory;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.util.bloom.BloomFilter;
 import org.apache.hadoop.util.bloom.Key;
 import org.apache.log4j.Logger;
 
-import ec.util.MersenneTwister;
+import ec.util.MersenneTwisterFast;
 
 /*
  * Copyright 2011 Jesse Anderson
@@ -44,78 +48,363 @@ public class MonkeyUtils {
 	
 	/** The size of the character group to use during processing.  This could be a parameter but I prefer a constant for now */
 	public static int QUOTE_SIZE = 9;
-	/** Static instance of the PRNG for the random character generation */
-	private static MersenneTwister random = new MersenneTwister();
-	/** Memory cache for Bloom Filter.  Only helps out in unit tests */
-	private static HashMap<String, BloomFilter> paramemetersToBloomFilter = new HashMap<String, BloomFilter>();
-	/** Memory cache for story text.  Only helps out in unit tests */
-	private static HashMap<String, StringBuilder> pathToFileContents = new HashMap<String, StringBuilder>();
+	/** Per-thread letter generator for the random character generation.  It isn't synchronized so it can't be shared */
+	private static ThreadLocal<LetterGenerator> random = new ThreadLocal<LetterGenerator>() {
+		@Override
+		protected LetterGenerator initialValue() {
+			return new LetterGenerator(newRandom());
+		}
+	};
+	/** The most memory the cached works, filters and indexes can take before some are dropped */
+	public static long cacheBytes = (Runtime.getRuntime().maxMemory() / 4) * 3;
+	/** 
+	 * Memory cache for the works, filters and indexes.  Every thread in the JVM shares it
+	 * and each one is only loaded once
+	 */
+	private static ArtifactCache artifacts = new ArtifactCache(cacheBytes);
 	/** Prefix.  Used when running on Amazon EC2 */
 	public static String prefix = "";
-
-	/** The number of letter in the alphabet */
-	private static final byte LETTERS = 26;
-	/** The offset in ACSII to get to the lowercase letters */
-	private static final byte ASCII_OFFSET = 97;
 		
 	public static String getText(Path path, int quoteSize,
 			String prefix, int vectorSize, int nbHash, int hashType) throws IOException {
 		return loadFile(path).toString();
 	}
 
-	public static BloomFilter getBloomFilter(Path path, int quoteSize,
-			String prefix, int vectorSize, int nbHash, int hashType)
+	public static BloomFilter getBloomFilter(final Path path, final int quoteSize,
+			final String prefix, final int vectorSize, final int nbHash, final int hashType)
 			throws IOException {
-		BloomFilter bloomFilter = MonkeyUtils.loadBloomFilter(prefix,
-				vectorSize, nbHash, hashType);
-
 		String bloomName = getBloomName(prefix, vectorSize, nbHash, hashType);
 		
-		if (bloomFilter == null) {
-			System.out.println("Loading bloom filter");
-			// Bloom not loaded already, load it
-			StringBuilder builder = loadFile(path);
-			
-			bloomFilter = new BloomFilter(vectorSize, nbHash, hashType);
+		return artifacts.get("bloom:" + bloomName, new ArtifactCache.Loader<BloomFilter>() {
+			@Override
+			public BloomFilter load() throws IOException {
+				BloomFilter bloomFilter = MonkeyUtils.loadBloomFilter(prefix,
+						vectorSize, nbHash, hashType);
+				
+				if (bloomFilter == null) {
+					System.out.println("Loading bloom filter");
+					// Bloom not saved already, create it
+					StringBuilder builder = loadFile(path);
+					
+					bloomFilter = new BloomFilter(vectorSize, nbHash, hashType);
+		
+					logger.info("Breaking up file");
+					MonkeyUtils.breakUp(bloomFilter, builder, quoteSize);
+					logger.info("Broken up file");
+		
+					// Save bloom out
+					MonkeyUtils.saveBloomFilter(bloomFilter, prefix, vectorSize,
+							nbHash, hashType);
+				}
+				
+				return bloomFilter;
+			}
 
-			logger.info("Breaking up file");
-			MonkeyUtils.breakUp(bloomFilter, builder, quoteSize);
-			logger.info("Broken up file");
+			@Override
+			public long getSizeInBytes(BloomFilter bloomFilter) {
+				return vectorSize / 8;
+			}
+		});
+	}
 
-			// Save bloom out
-			MonkeyUtils.saveBloomFilter(bloomFilter, prefix, vectorSize,
-					nbHash, hashType);
+	/**
+	 * Gets the filter the mapper tests quotes against, building and saving it if needed
+	 * @param type The kind of filter
+	 * @param path The path to the works
+	 * @param quoteSize The number of letters in a quote
+	 * @param prefix The prefix for the saved filter file
+	 * @param vectorSize The number of bits for a Bloom Filter
+	 * @param nbHash The number of probes for a Bloom Filter
+	 * @return The filter
+	 */
+	public static QuoteFilter getQuoteFilter(QuoteFilter.Type type, Path path, int quoteSize,
+			String prefix, int vectorSize, int nbHash) throws IOException {
+		switch (type) {
+		case HASH_SET:
+			return getQuoteHashSet(path, quoteSize, prefix);
+		case EYTZINGER:
+			return getEytzingerQuoteSet(path, quoteSize, prefix);
+		case BLOCKED_BLOOM:
+			return getBlockedBloomFilter(path, quoteSize, prefix, vectorSize, nbHash);
+		case AUTOMATON:
+			return getSuffixAutomaton(path, quoteSize, prefix);
+		default:
+			return getRollingBloomFilter(path, quoteSize, prefix, vectorSize, nbHash);
+		}
+	}
 
+	public static RollingBloomFilter getRollingBloomFilter(Path path, int quoteSize,
+			String prefix, final int vectorSize, final int nbHash) throws IOException {
+		String filterName = getRollingBloomName(prefix, vectorSize, nbHash);
+		
+		return artifacts.get("filter:" + filterName, new QuoteFilterLoader<RollingBloomFilter>(filterName, path, quoteSize, prefix) {
+			@Override
+			protected RollingBloomFilter newFilter() {
+				return new RollingBloomFilter(vectorSize, nbHash);
+			}
+		});
+	}
+
+	public static BlockedBloomFilter getBlockedBloomFilter(Path path, int quoteSize,
+			String prefix, final int vectorSize, final int nbHash) throws IOException {
+		String filterName = getBlockedBloomName(prefix, vectorSize, nbHash);
+		
+		return artifacts.get("filter:" + filterName, new QuoteFilterLoader<BlockedBloomFilter>(filterName, path, quoteSize, prefix) {
+			@Override
+			protected BlockedBloomFilter newFilter() {
+				return new BlockedBloomFilter(vectorSize, nbHash);
+			}
+		});
+	}
+
+	public static QuoteHashSet getQuoteHashSet(Path path, int quoteSize, String prefix) throws IOException {
+		String filterName = getQuoteHashSetName(prefix);
+		
+		return artifacts.get("filter:" + filterName, new QuoteFilterLoader<QuoteHashSet>(filterName, path, quoteSize, prefix) {
+			@Override
+			protected QuoteHashSet newFilter() {
+				return new QuoteHashSet();
+			}
+		});
+	}
+
+	/**
+	 * Gets the Eytzinger ordered quote set, mapping it from its file.  The file is built
+	 * from the quote hash set the first time
+	 * @param path The path to the works
+	 * @param quoteSize The number of letters in a quote
+	 * @param prefix The prefix for the saved set file
+	 * @return The set
+	 */
+	public static EytzingerQuoteSet getEytzingerQuoteSet(final Path path, final int quoteSize, 
+			final String prefix) throws IOException {
+		final String setName = getEytzingerName(prefix);
+		
+		return artifacts.get("filter:" + setName, new ArtifactCache.Loader<EytzingerQuoteSet>() {
+			@Override
+			public EytzingerQuoteSet load() throws IOException {
+				EytzingerQuoteSet quoteSet;
+				
+				Path setPath = new Path(prefix + setName);
+				FileSystem fileSystem = getFilesystem();
+				
+				if (fileSystem.exists(setPath)) {
+					quoteSet = new EytzingerQuoteSet();
+					quoteSet.wrap(mapFile(getLocalFile(fileSystem, setPath)));
+				} else {
+					logger.info("Building Eytzinger quote set " + setName);
+					quoteSet = new EytzingerQuoteSet(getQuoteHashSet(path, quoteSize, prefix).toArray());
+					
+					FSDataOutputStream outputStream = fileSystem.create(setPath, true);
+					quoteSet.write(outputStream);
+					outputStream.close();
+				}
+				
+				return quoteSet;
+			}
+
+			@Override
+			public long getSizeInBytes(EytzingerQuoteSet quoteSet) {
+				return quoteSet.getSizeInBytes();
+			}
+		});
+	}
+	
+	/**
+	 * Gets the suffix automaton over the works, mapping it from its file.  Building takes
+	 * far more memory than using it, so the file is built and saved the first time, which
+	 * the driver does before any task needs it
+	 * @param path The path to the works
+	 * @param quoteSize The number of letters in a quote
+	 * @param prefix The prefix for the saved automaton file
+	 * @return The automaton
+	 */
+	public static SuffixAutomaton getSuffixAutomaton(final Path path, final int quoteSize, 
+			final String prefix) throws IOException {
+		final String automatonName = getSuffixAutomatonName(prefix);
+		
+		return artifacts.get("filter:" + automatonName, new ArtifactCache.Loader<SuffixAutomaton>() {
+			@Override
+			public SuffixAutomaton load() throws IOException {
+				SuffixAutomaton automaton;
+				
+				Path automatonPath = new Path(prefix + automatonName);
+				FileSystem fileSystem = getFilesystem();
+				
+				if (fileSystem.exists(automatonPath)) {
+					automaton = new SuffixAutomaton(quoteSize);
+					automaton.wrap(mapFile(getLocalFile(fileSystem, automatonPath)));
+				} else {
+					logger.info("Building suffix automaton " + automatonName);
+					automaton = new SuffixAutomaton(loadFile(path), quoteSize);
+					logger.info("Built suffix automaton with " + automaton.getStates() + " states");
+					
+					FSDataOutputStream outputStream = fileSystem.create(automatonPath, true);
+					automaton.write(outputStream);
+					outputStream.close();
+				}
+				
+				return automaton;
+			}
+
+			@Override
+			public long getSizeInBytes(SuffixAutomaton automaton) {
+				return automaton.getSizeInBytes();
+			}
+		});
+	}
+	
+	/**
+	 * Gets the suffix array over the works, building it the first time
+	 * @param path The path to the works
+	 * @return The suffix array
+	 */
+	public static SuffixArray getSuffixArray(final Path path) throws IOException {
+		return artifacts.get("suffixes:" + path.toString(), new ArtifactCache.Loader<SuffixArray>() {
+			@Override
+			public SuffixArray load() throws IOException {
+				StringBuilder builder = loadFile(path);
+				
+				logger.info("Building suffix array for " + path.toString());
+				SuffixArray suffixArray = new SuffixArray(builder);
+				logger.info("Built suffix array for " + path.toString());
+				
+				return suffixArray;
+			}
+
+			@Override
+			public long getSizeInBytes(SuffixArray suffixArray) {
+				return suffixArray.getSizeInBytes();
+			}
+		});
+	}
+	
+	/**
+	 * Gets a file on the local disk that can be mapped.  Files on other file systems
+	 * are copied to the temp directory once per machine and reused after that
+	 * @param fileSystem The file system the file is on
+	 * @param path The path to the file
+	 * @return The local file
+	 */
+	private static File getLocalFile(FileSystem fileSystem, Path path) throws IOException {
+		if (fileSystem instanceof LocalFileSystem) {
+			return ((LocalFileSystem) fileSystem).pathToFile(path);
+		}
+		
+		File localFile = new File(System.getProperty("java.io.tmpdir"), path.getName());
+		
+		if (!localFile.exists() || localFile.length() != fileSystem.getFileStatus(path).getLen()) {
+			logger.info("Copying " + path + " to " + localFile);
 			
-			paramemetersToBloomFilter.put(bloomName, bloomFilter);
-		} else {
-			//System.out.println("Loading bloom filter from memory");
-			StringBuilder builder = loadFile(path);
+			// Copy to a private name and rename so other task JVMs never map a partial file
+			File copyFile = File.createTempFile(path.getName(), ".copy", localFile.getParentFile());
+			copyFile.delete();
+			
+			fileSystem.copyToLocalFile(path, new Path(copyFile.getAbsolutePath()));
 			
-			paramemetersToBloomFilter.put(bloomName, bloomFilter);
+			if (!copyFile.renameTo(localFile)) {
+				// Another JVM won the race.  Its copy is the same file
+				copyFile.delete();
+			}
+		}
+		
+		return localFile;
+	}
+	
+	/**
+	 * Maps a whole file read only.  Every task JVM on a machine that maps the same file
+	 * shares the same pages in the OS page cache instead of each holding its own copy
+	 * @param file The file to map
+	 * @return The mapped file
+	 */
+	public static MappedByteBuffer mapFile(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		
+		try {
+			// The mapping stays valid after the channel is closed
+			return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		} finally {
+			randomAccessFile.close();
 		}
-
-		return bloomFilter;
 	}
 
-	private static StringBuilder loadFile(Path path) throws IOException {
-		// See if already in memory
-		StringBuilder builder = pathToFileContents.get(path.toString());
+	/**
+	 * Loads a filter by mapping its saved file or by breaking up the works and saving it
+	 */
+	private static abstract class QuoteFilterLoader<T extends BuildableQuoteFilter & MappableQuoteFilter> implements ArtifactCache.Loader<T> {
+		/** The file name of the saved filter */
+		private final String filterName;
+		/** The path to the works */
+		private final Path path;
+		/** The number of letters in a quote */
+		private final int quoteSize;
+		/** The prefix for the saved filter file */
+		private final String prefix;
 		
-		if (builder != null) {
-			return builder;
+		public QuoteFilterLoader(String filterName, Path path, int quoteSize, String prefix) {
+			this.filterName = filterName;
+			this.path = path;
+			this.quoteSize = quoteSize;
+			this.prefix = prefix;
 		}
 		
-		logger.info("Loading file " + path.toString());
-		System.out.println("Loading file " + path.toString());
-
-		builder = readEntireFile(path);
+		/**
+		 * Creates an empty filter to fill or wrap
+		 * @return The filter
+		 */
+		protected abstract T newFilter();
 		
-		pathToFileContents.put(path.toString(), builder);
+		@Override
+		public T load() throws IOException {
+			T filter = newFilter();
+			
+			Path filterPath = new Path(prefix + filterName);
+			FileSystem fileSystem = getFilesystem();
+			
+			if (fileSystem.exists(filterPath)) {
+				filter.wrap(mapFile(getLocalFile(fileSystem, filterPath)));
+			} else {
+				System.out.println("Loading quote filter " + filterName);
+				StringBuilder builder = loadFile(path);
+	
+				logger.info("Breaking up file");
+				MonkeyUtils.breakUp(filter, builder, new QuoteCodec(quoteSize));
+				logger.info("Broken up file");
+				
+				// Save filter out
+				FSDataOutputStream outputStream = fileSystem.create(filterPath, true);
+				filter.write(outputStream);
+				outputStream.close();
+			}
+			
+			return filter;
+		}
 
-		logger.info("Finished loading file " + path.toString() + " size:" + builder.length());
+		@Override
+		public long getSizeInBytes(T filter) {
+			return filter.getSizeInBytes();
+		}
+	}
+
+	private static StringBuilder loadFile(final Path path) throws IOException {
+		return artifacts.get("file:" + path.toString(), new ArtifactCache.Loader<StringBuilder>() {
+			@Override
+			public StringBuilder load() throws IOException {
+				logger.info("Loading file " + path.toString());
+				System.out.println("Loading file " + path.toString());
 		
-		return builder;
+				StringBuilder builder = readEntireFile(path);
+		
+				logger.info("Finished loading file " + path.toString() + " size:" + builder.length());
+				
+				return builder;
+			}
+
+			@Override
+			public long getSizeInBytes(StringBuilder builder) {
+				return builder.capacity() * 2L;
+			}
+		});
 	}
 
 	public static StringBuilder readEntireFile(Path path) throws IOException {
@@ -140,28 +429,22 @@ public class MonkeyUtils {
 	public static BloomFilter loadBloomFilter(String prefix, int vectorSize,
 			int nbHash, int hashType) throws IOException {
 		String bloomName = getBloomName(prefix, vectorSize, nbHash, hashType);
+		Path bloomPath = new Path(prefix + bloomName);
+		
+		FileSystem fileSystem = getFilesystem();
+		
+		if (fileSystem.exists(bloomPath)) {
+			FSDataInputStream inputStream = fileSystem.open(bloomPath);
 
-		if (paramemetersToBloomFilter.containsKey(bloomName)) {
-			// Bloom already initialized and in map, return it
-			return paramemetersToBloomFilter.get(bloomName);
-		} else {
-			Path bloomPath = new Path(prefix + bloomName);
-			
-			FileSystem fileSystem = getFilesystem();
+			BloomFilter bloomFilter = new BloomFilter(vectorSize, nbHash,
+					hashType);
+			bloomFilter.readFields(inputStream);
 			
-			if (fileSystem.exists(bloomPath)) {
-				FSDataInputStream inputStream = fileSystem.open(bloomPath);
+			inputStream.close();
 
-				BloomFilter bloomFilter = new BloomFilter(vectorSize, nbHash,
-						hashType);
-				bloomFilter.readFields(inputStream);
-				
-				inputStream.close();
-
-				return bloomFilter;
-			} else {
-				return null;
-			}
+			return bloomFilter;
+		} else {
+			return null;
 		}
 	}
 	
@@ -192,6 +475,26 @@ public class MonkeyUtils {
 				+ ".bloom";
 	}
 
+	public static String getRollingBloomName(String prefix, int vectorSize, int nbHash) {
+		return prefix + "_" + vectorSize + "_" + nbHash + "_rolling_" + QUOTE_SIZE + ".bloom";
+	}
+
+	public static String getBlockedBloomName(String prefix, int vectorSize, int nbHash) {
+		return prefix + "_" + vectorSize + "_" + nbHash + "_blocked_" + QUOTE_SIZE + ".bloom";
+	}
+
+	public static String getQuoteHashSetName(String prefix) {
+		return prefix + "_" + QUOTE_SIZE + ".hashset";
+	}
+
+	public static String getEytzingerName(String prefix) {
+		return prefix + "_" + QUOTE_SIZE + ".eytzinger";
+	}
+
+	public static String getSuffixAutomatonName(String prefix) {
+		return prefix + "_" + QUOTE_SIZE + ".automaton";
+	}
+
 	public static String[] breakUp(String input, int amount) {
 		int size = input.length() - amount;
 
@@ -219,14 +522,68 @@ public class MonkeyUtils {
 		}
 	}
 
-	public static void getRandomBytes(byte[] randomBytes) {
-		random.nextBytes(randomBytes);
+	/**
+	 * Adds every window of the input made up only of a-z to the filter.  Windows with
+	 * any other character can never be typed by a monkey so they are skipped.
+	 * @param filter The filter to add to
+	 * @param input The text to break up
+	 * @param codec The codec for the quote size
+	 */
+	public static void breakUp(BuildableQuoteFilter filter, CharSequence input, QuoteCodec codec) {
+		int size = input.length();
+		// The number of letters in a row ending at the current character
+		int run = 0;
+		long quote = 0;
+
+		for (int i = 0; i < size; i++) {
+			char character = input.charAt(i);
+			
+			if (!QuoteCodec.isLetter(character)) {
+				run = 0;
+				continue;
+			}
+			
+			quote = codec.append(quote, character);
+			run++;
+			
+			if (run >= codec.getQuoteSize()) {
+				filter.add(quote);
+			}
 
-		// Make bytes only a-z
-		for (int i = 0; i < randomBytes.length; i++) {
-			randomBytes[i] = (byte) ((Math.abs(randomBytes[i]) % LETTERS) + ASCII_OFFSET);
+			if (i % 1000000 == 0) {
+				logger.info("Breaking up input " + i + "/" + size);
+			}
 		}
 	}
+
+	/**
+	 * Creates a PRNG seeded from the clock and the current thread so that
+	 * threads starting in the same millisecond don't type the same letters
+	 * @return The newly seeded PRNG
+	 */
+	public static MersenneTwisterFast newRandom() {
+		long time = System.nanoTime();
+		long threadId = Thread.currentThread().getId();
+		
+		return new MersenneTwisterFast(new int[] { (int) time, (int) (time >>> 32),
+				(int) System.currentTimeMillis(), (int) threadId, System.identityHashCode(Thread.currentThread()) });
+	}
+
+	/**
+	 * Fills the array with random lowercase letters using the calling thread's PRNG
+	 * @param randomBytes The array to fill
+	 */
+	public static void getRandomBytes(byte[] randomBytes) {
+		random.get().fill(randomBytes);
+	}
+	
+	/**
+	 * Gets the calling thread's letter generator for filling larger buffers directly
+	 * @return The calling thread's letter generator
+	 */
+	public static LetterGenerator getLetterGenerator() {
+		return random.get();
+	}
 	
 	public static String getStringForBytes(byte[] randomBytes) {
 		return new String(randomBytes);
@@ -0,0 +1,259 @@
+package com.jesseanderson.monkeys;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Allows an iteration's quotes to be kept in an array of packed longs (see QuoteCodec).
+ * Adding a quote doesn't allocate unless the array has to grow.  Each quote carries the
+ * number of times it was typed so duplicates can be merged into one entry (see sortAndMerge).
+ *
+ * Quotes are written as variable length differences from the quote before, which is only
+ * a few bytes each once the array is sorted.  It is only ever a map output value, so
+ * it isn't comparable.
+ */
+public class QuoteArrayWritable implements Writable {
+
+	/** The packed quotes.  Only the first size are used */
+	private long[] quotes;
+	/** The number of times each quote was typed.  Only the first size are used */
+	private int[] counts;
+	/** The number of quotes */
+	private int size;
+
+	public QuoteArrayWritable() {
+		this(16);
+	}
+
+	/**
+	 * Creates an empty array
+	 * @param capacity The number of quotes to make room for
+	 */
+	public QuoteArrayWritable(int capacity) {
+		quotes = new long[Math.max(capacity, 1)];
+		counts = new int[quotes.length];
+	}
+
+	/**
+	 * Creates an array holding the quotes
+	 * @param quotes The packed quotes
+	 */
+	public QuoteArrayWritable(long... quotes) {
+		this(quotes.length);
+
+		for (long quote : quotes) {
+			add(quote);
+		}
+	}
+
+	/**
+	 * Adds a quote to the end
+	 * @param quote The packed quote
+	 */
+	public void add(long quote) {
+		add(quote, 1);
+	}
+
+	/**
+	 * Adds a quote that was typed a number of times to the end
+	 * @param quote The packed quote
+	 * @param count The number of times it was typed
+	 */
+	public void add(long quote, int count) {
+		if (size == quotes.length) {
+			quotes = Arrays.copyOf(quotes, size * 2);
+			counts = Arrays.copyOf(counts, size * 2);
+		}
+
+		quotes[size] = quote;
+		counts[size++] = count;
+	}
+
+	/**
+	 * Adds all of another array's quotes to the end
+	 * @param other The quotes to add
+	 */
+	public void addAll(QuoteArrayWritable other) {
+		for (int i = 0; i < other.size; i++) {
+			add(other.quotes[i], other.counts[i]);
+		}
+	}
+
+	/**
+	 * Gets a quote
+	 * @param index The index of the quote
+	 * @return The packed quote
+	 */
+	public long get(int index) {
+		return quotes[index];
+	}
+
+	/**
+	 * Gets the number of times a quote was typed
+	 * @param index The index of the quote
+	 * @return The count
+	 */
+	public int getCount(int index) {
+		return counts[index];
+	}
+
+	/**
+	 * Gets the number of quotes
+	 * @return The number of quotes
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Sorts the quotes and merges duplicates into one entry whose count is their total
+	 */
+	public void sortAndMerge() {
+		long[] distinct = Arrays.copyOf(quotes, size);
+		Arrays.sort(distinct);
+
+		int distinctSize = 0;
+
+		for (int i = 0; i < size; i++) {
+			if (distinctSize == 0 || distinct[i] != distinct[distinctSize - 1]) {
+				distinct[distinctSize++] = distinct[i];
+			}
+		}
+
+		int[] totals = new int[Math.max(distinctSize, 1)];
+
+		for (int i = 0; i < size; i++) {
+			totals[Arrays.binarySearch(distinct, 0, distinctSize, quotes[i])] += counts[i];
+		}
+
+		quotes = distinct.length == 0 ? new long[1] : distinct;
+		counts = Arrays.copyOf(totals, quotes.length);
+		size = distinctSize;
+	}
+
+	/**
+	 * Removes all quotes but keeps the space
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, size);
+
+		// Counts are only written when something was typed more than once
+		boolean counted = false;
+
+		for (int i = 0; i < size && !counted; i++) {
+			counted = counts[i] != 1;
+		}
+
+		out.writeBoolean(counted);
+
+		long previous = 0;
+
+		for (int i = 0; i < size; i++) {
+			WritableUtils.writeVLong(out, quotes[i] - previous);
+			previous = quotes[i];
+		}
+
+		if (counted) {
+			for (int i = 0; i < size; i++) {
+				WritableUtils.writeVInt(out, counts[i]);
+			}
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		size = WritableUtils.readVInt(in);
+
+		if (quotes.length < size) {
+			quotes = new long[size];
+			counts = new int[size];
+		}
+
+		boolean counted = in.readBoolean();
+		long previous = 0;
+
+		for (int i = 0; i < size; i++) {
+			quotes[i] = previous + WritableUtils.readVLong(in);
+			previous = quotes[i];
+		}
+
+		for (int i = 0; i < size; i++) {
+			counts[i] = counted ? WritableUtils.readVInt(in) : 1;
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof QuoteArrayWritable)) {
+			return false;
+		}
+
+		QuoteArrayWritable other = (QuoteArrayWritable) obj;
+
+		if (size != other.size) {
+			return false;
+		}
+
+		for (int i = 0; i < size; i++) {
+			if (quotes[i] != other.quotes[i] || counts[i] != other.counts[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = size;
+
+		for (int i = 0; i < size; i++) {
+			hash = (31 * hash) + (int) (quotes[i] ^ (quotes[i] >>> 32));
+			hash = (31 * hash) + counts[i];
+		}
+
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		QuoteCodec codec = new QuoteCodec(MonkeyUtils.QUOTE_SIZE);
+
+		for (int i = 0; i < size; i++) {
+			builder.append(codec.toString(quotes[i]));
+
+			if (counts[i] != 1) {
+				builder.append(" x").append(counts[i]);
+			}
+
+			builder.append(", ");
+		}
+
+		return builder.toString();
+	}
+}
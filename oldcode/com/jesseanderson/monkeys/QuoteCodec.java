@@ -0,0 +1,180 @@
+package com.jesseanderson.monkeys;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Packs a quote of lowercase letters into a long by writing it as a base 26 number.  A
+ * 9 letter quote needs 43 bits.  The packed value doubles as a Rabin-Karp rolling hash:
+ * it is exact (no two quotes share a value) and a window slides one letter in O(1).
+ * Packed quotes are what the mapper, reducer and driver pass around instead of Strings.
+ * 13 letters is the most that fits in a long.
+ */
+public class QuoteCodec {
+	/** The longest quote that fits in a long */
+	public static final int MAX_QUOTE_SIZE = 13;
+
+	/** The number of letters in each quote */
+	private final int quoteSize;
+	/** 26^(quoteSize - 1), the place value of a quote's first letter */
+	private final long leadingPower;
+	/** 26^quoteSize, one more than the largest value */
+	private final long range;
+
+	/**
+	 * Creates a codec for quotes of a fixed size
+	 * @param quoteSize The number of letters in each quote
+	 */
+	public QuoteCodec(int quoteSize) {
+		if (quoteSize < 1 || quoteSize > MAX_QUOTE_SIZE) {
+			throw new IllegalArgumentException("Quote size must be between 1 and " + MAX_QUOTE_SIZE + " was " + quoteSize);
+		}
+
+		this.quoteSize = quoteSize;
+
+		long power = 1;
+
+		for (int i = 1; i < quoteSize; i++) {
+			power *= LetterGenerator.LETTERS;
+		}
+
+		leadingPower = power;
+		range = power * LetterGenerator.LETTERS;
+	}
+
+	/**
+	 * Gets the number of letters in each quote
+	 * @return The number of letters in each quote
+	 */
+	public int getQuoteSize() {
+		return quoteSize;
+	}
+
+	/**
+	 * Gets the number of distinct quotes
+	 * @return 26^quoteSize
+	 */
+	public long getRange() {
+		return range;
+	}
+
+	/**
+	 * Checks that a character is one the monkeys can type
+	 * @param character The character to check
+	 * @return True if character is a-z
+	 */
+	public static boolean isLetter(int character) {
+		return character >= 'a' && character <= 'z';
+	}
+
+	/**
+	 * Packs quoteSize letters
+	 * @param letters The array holding the letters.  All must be a-z
+	 * @param offset The index of the first letter
+	 * @return The packed quote
+	 */
+	public long encode(byte[] letters, int offset) {
+		long quote = 0;
+
+		for (int i = 0; i < quoteSize; i++) {
+			quote = (quote * LetterGenerator.LETTERS) + (letters[offset + i] - LetterGenerator.ASCII_OFFSET);
+		}
+
+		return quote;
+	}
+
+	/**
+	 * Packs a String of quoteSize letters
+	 * @param quote The quote.  All letters must be a-z
+	 * @return The packed quote
+	 */
+	public long encode(CharSequence quote) {
+		if (quote.length() != quoteSize) {
+			throw new IllegalArgumentException("Quote \"" + quote + "\" is not " + quoteSize + " letters");
+		}
+
+		long packed = 0;
+
+		for (int i = 0; i < quoteSize; i++) {
+			packed = append(packed, quote.charAt(i));
+		}
+
+		return packed;
+	}
+
+	/**
+	 * Unpacks a quote into letters
+	 * @param quote The packed quote
+	 * @param letters The array to write quoteSize letters to
+	 * @param offset The index to write the first letter to
+	 */
+	public void decode(long quote, byte[] letters, int offset) {
+		for (int i = quoteSize - 1; i >= 0; i--) {
+			long next = quote / LetterGenerator.LETTERS;
+			letters[offset + i] = (byte) ((quote - (next * LetterGenerator.LETTERS)) + LetterGenerator.ASCII_OFFSET);
+			quote = next;
+		}
+	}
+
+	/**
+	 * Unpacks a quote into a String.  Allocates so keep it off the hot path
+	 * @param quote The packed quote
+	 * @return The quote's letters
+	 */
+	public String toString(long quote) {
+		byte[] letters = new byte[quoteSize];
+		decode(quote, letters, 0);
+
+		return new String(letters);
+	}
+
+	/**
+	 * Slides the window one letter to the right
+	 * @param quote The packed current window
+	 * @param out The letter leaving the window on the left
+	 * @param in The letter entering the window on the right
+	 * @return The packed new window
+	 */
+	public long roll(long quote, byte out, byte in) {
+		return ((quote - ((out - LetterGenerator.ASCII_OFFSET) * leadingPower)) * LetterGenerator.LETTERS) +
+				(in - LetterGenerator.ASCII_OFFSET);
+	}
+
+	/**
+	 * Appends a letter to a quote, dropping its first letter.  Unlike roll this doesn't
+	 * need the outgoing letter, which is handy when the window isn't full yet
+	 * @param quote The packed current window
+	 * @param in The letter entering the window on the right
+	 * @return The packed new window
+	 */
+	public long append(long quote, int in) {
+		return ((quote % leadingPower) * LetterGenerator.LETTERS) + (in - LetterGenerator.ASCII_OFFSET);
+	}
+
+	/**
+	 * The MurmurHash3 64 bit finalizer.  Spreads a packed quote, which only uses
+	 * the low bits and changes slowly, over all 64 bits for hashing
+	 * @param value The value to mix
+	 * @return The mixed value
+	 */
+	public static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+
+		return value;
+	}
+}
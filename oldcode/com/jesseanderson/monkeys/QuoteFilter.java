@@ -0,0 +1,66 @@
+package com.jesseanderson.monkeys;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Answers whether a packed quote (see QuoteCodec) might be in the works.  Implementations
+ * must be safe to share between threads once they are built.  Only lookups are here, the
+ * filters that can be filled a quote at a time are BuildableQuoteFilters.
+ */
+public interface QuoteFilter {
+	/**
+	 * The kinds of filter the mapper can use
+	 */
+	public enum Type {
+		/** RollingBloomFilter.  Can have false positives that the reducer has to weed out */
+		BLOOM(false),
+		/** BlockedBloomFilter.  One cache line per test but can have false positives too */
+		BLOCKED_BLOOM(false),
+		/** QuoteHashSet.  Exact so the reducer doesn't have to double check */
+		HASH_SET(true),
+		/** EytzingerQuoteSet.  Exact and mapped straight from its file */
+		EYTZINGER(true),
+		/** SuffixAutomaton.  Exact and follows the stream so it finds matches longer than a quote */
+		AUTOMATON(true);
+		
+		/** Whether the filter has no false positives */
+		private final boolean exact;
+		
+		private Type(boolean exact) {
+			this.exact = exact;
+		}
+		
+		/**
+		 * Checks if the filter has no false positives
+		 * @return True if every quote that passes is really in the works
+		 */
+		public boolean isExact() {
+			return exact;
+		}
+	}
+	
+	/**
+	 * Checks if the quote might have been added
+	 * @param quote The packed quote
+	 * @return False if the quote was definitely never added
+	 */
+	public boolean membershipTest(long quote);
+	
+	/**
+	 * Gets the memory the filter takes, whether on the heap or mapped
+	 * @return The size in bytes
+	 */
+	public long getSizeInBytes();
+}
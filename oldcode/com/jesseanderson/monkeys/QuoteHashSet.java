@@ -0,0 +1,194 @@
+package com.jesseanderson.monkeys;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * An exact set of packed quotes in a primitive open addressing table with linear probing.
+ * The works only have a few million distinct quotes so the whole set is a few tens of MB
+ * and, unlike a Bloom Filter, it never has false positives.  The saved file is the table
+ * itself so it can be mapped and probed without rehashing anything.
+ */
+public class QuoteHashSet implements BuildableQuoteFilter, MappableQuoteFilter {
+	/** Marks an empty slot.  Packed quotes are never negative */
+	private static final long EMPTY = -1;
+	/** The fraction of slots that can be used before the table grows */
+	private static final double MAX_LOAD = 0.75;
+
+	/** The slots.  The length is always a power of 2.  On the heap or mapped from the set's file */
+	private LongBuffer table;
+	/** table.length - 1 */
+	private int mask;
+	/** The number of quotes in the set */
+	private int size;
+
+	public QuoteHashSet() {
+		this(1024);
+	}
+
+	/**
+	 * Creates an empty set
+	 * @param expectedSize The number of quotes to make room for without growing
+	 */
+	public QuoteHashSet(int expectedSize) {
+		allocate(expectedSize);
+	}
+
+	/**
+	 * Creates an empty table big enough for a number of quotes
+	 * @param expectedSize The number of quotes to make room for
+	 */
+	private void allocate(int expectedSize) {
+		int capacity = 16;
+
+		while (capacity * MAX_LOAD < expectedSize) {
+			capacity <<= 1;
+		}
+
+		long[] array = new long[capacity];
+		Arrays.fill(array, EMPTY);
+
+		table = LongBuffer.wrap(array);
+		mask = capacity - 1;
+		size = 0;
+	}
+
+	@Override
+	public void add(long quote) {
+		if (size + 1 > table.limit() * MAX_LOAD) {
+			grow();
+		}
+
+		int slot = (int) QuoteCodec.mix(quote) & mask;
+
+		long current;
+
+		while ((current = table.get(slot)) != EMPTY) {
+			if (current == quote) {
+				return;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		table.put(slot, quote);
+		size++;
+	}
+
+	@Override
+	public boolean membershipTest(long quote) {
+		int slot = (int) QuoteCodec.mix(quote) & mask;
+		long current;
+
+		while ((current = table.get(slot)) != EMPTY) {
+			if (current == quote) {
+				return true;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Gets the number of distinct quotes in the set
+	 * @return The number of quotes
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Copies the quotes out of the set in no particular order
+	 * @return A new array with every quote in the set
+	 */
+	public long[] toArray() {
+		long[] quotes = new long[size];
+		int index = 0;
+
+		for (int i = 0; i < table.limit(); i++) {
+			long quote = table.get(i);
+
+			if (quote != EMPTY) {
+				quotes[index++] = quote;
+			}
+		}
+
+		return quotes;
+	}
+
+	/**
+	 * Doubles the table and rehashes every quote
+	 */
+	private void grow() {
+		LongBuffer oldTable = table;
+
+		allocate(oldTable.limit());
+
+		for (int i = 0; i < oldTable.limit(); i++) {
+			long quote = oldTable.get(i);
+
+			if (quote != EMPTY) {
+				add(quote);
+			}
+		}
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		// The whole table is written so the file can be mapped and probed in place
+		out.writeInt(size);
+		out.writeInt(table.limit());
+
+		for (int i = 0; i < table.limit(); i++) {
+			out.writeLong(table.get(i));
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		size = in.readInt();
+
+		long[] array = new long[in.readInt()];
+
+		for (int i = 0; i < array.length; i++) {
+			array[i] = in.readLong();
+		}
+
+		table = LongBuffer.wrap(array);
+		mask = array.length - 1;
+	}
+
+	@Override
+	public void wrap(ByteBuffer buffer) {
+		size = buffer.getInt(0);
+		mask = buffer.getInt(4) - 1;
+
+		buffer.position(8);
+		table = buffer.slice().asLongBuffer();
+	}
+
+	@Override
+	public long getSizeInBytes() {
+		return table.limit() * 8L;
+	}
+}
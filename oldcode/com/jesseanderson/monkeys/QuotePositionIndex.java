@@ -0,0 +1,165 @@
+package com.jesseanderson.monkeys;
+
+import java.util.Arrays;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * An inverted index from packed quote (see QuoteCodec) to every position it starts at in
+ * a text.  It's kept in three primitive arrays the way a compressed sparse row matrix is:
+ * the sorted distinct quotes, and for each one a range of the positions array.  Looking up
+ * a found quote is a binary search followed by a run of positions to mark.
+ */
+public class QuotePositionIndex {
+	/** The distinct quotes in the text, sorted */
+	private final long[] keys;
+	/** The positions of keys[i] are positions[offsets[i]] up to positions[offsets[i + 1]] */
+	private final int[] offsets;
+	/** The start of every quote in the text, grouped by quote and in order within a group */
+	private final int[] positions;
+	/** The number of letters in each quote */
+	private final int quoteSize;
+
+	/**
+	 * Indexes every quote in a text
+	 * @param text The text.  Only runs of a-z make quotes
+	 * @param codec The codec for the quote size to index
+	 */
+	public QuotePositionIndex(CharSequence text, QuoteCodec codec) {
+		quoteSize = codec.getQuoteSize();
+
+		// Pack every quote in the text, in order
+		long[] quotes = new long[Math.max(text.length() - quoteSize + 1, 0)];
+		int count = 0;
+		int run = 0;
+		long quote = 0;
+
+		for (int i = 0; i < text.length(); i++) {
+			char character = text.charAt(i);
+
+			if (!QuoteCodec.isLetter(character)) {
+				run = 0;
+				continue;
+			}
+
+			quote = codec.append(quote, character);
+			run++;
+
+			if (run >= quoteSize) {
+				quotes[count++] = quote;
+			}
+		}
+
+		// The keys are the distinct quotes
+		long[] sorted = Arrays.copyOf(quotes, count);
+		Arrays.sort(sorted);
+
+		int distinct = 0;
+
+		for (int i = 0; i < count; i++) {
+			if (distinct == 0 || sorted[i] != sorted[distinct - 1]) {
+				sorted[distinct++] = sorted[i];
+			}
+		}
+
+		keys = Arrays.copyOf(sorted, distinct);
+
+		// Count each key's positions and turn the counts into offsets
+		int[] quoteKeys = new int[count];
+		offsets = new int[distinct + 1];
+
+		for (int i = 0; i < count; i++) {
+			quoteKeys[i] = Arrays.binarySearch(keys, quotes[i]);
+			offsets[quoteKeys[i] + 1]++;
+		}
+
+		for (int i = 1; i <= distinct; i++) {
+			offsets[i] += offsets[i - 1];
+		}
+
+		// Walk the text again so each key's positions stay in order
+		positions = new int[count];
+		int[] next = Arrays.copyOf(offsets, distinct);
+		run = 0;
+		count = 0;
+
+		for (int i = 0; i < text.length(); i++) {
+			if (!QuoteCodec.isLetter(text.charAt(i))) {
+				run = 0;
+				continue;
+			}
+
+			run++;
+
+			if (run >= quoteSize) {
+				positions[next[quoteKeys[count++]]++] = i - quoteSize + 1;
+			}
+		}
+	}
+
+	/**
+	 * Finds a quote's key
+	 * @param quote The packed quote
+	 * @return The key's index or -1 if the quote isn't in the text
+	 */
+	public int find(long quote) {
+		int key = Arrays.binarySearch(keys, quote);
+
+		return key < 0 ? -1 : key;
+	}
+
+	/**
+	 * Gets the index of a key's first position
+	 * @param key The key's index from find
+	 * @return The index in the positions of the key's first position
+	 */
+	public int getFirst(int key) {
+		return offsets[key];
+	}
+
+	/**
+	 * Gets the index just past a key's last position
+	 * @param key The key's index from find
+	 * @return The index in the positions after the key's last position
+	 */
+	public int getEnd(int key) {
+		return offsets[key + 1];
+	}
+
+	/**
+	 * Gets a position
+	 * @param index The index in the positions, between getFirst and getEnd of a key
+	 * @return The offset in the text the quote starts at
+	 */
+	public int getPosition(int index) {
+		return positions[index];
+	}
+
+	/**
+	 * Gets the number of letters in each quote
+	 * @return The number of letters in each quote
+	 */
+	public int getQuoteSize() {
+		return quoteSize;
+	}
+
+	/**
+	 * Gets the number of distinct quotes
+	 * @return The number of keys
+	 */
+	public int size() {
+		return keys.length;
+	}
+}
@@ -0,0 +1,129 @@
+package com.jesseanderson.monkeys;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A Bloom Filter keyed by a quote's rolling hash (see QuoteCodec) instead of its bytes.
+ * All nbHash probe positions come from one mix of the rolling value using double hashing,
+ * so testing a window costs the same no matter how long QUOTE_SIZE is.
+ */
+public class RollingBloomFilter implements BuildableQuoteFilter, MappableQuoteFilter {
+	/** The number of bits in the filter */
+	private int vectorSize;
+	/** The number of probes per quote */
+	private int nbHash;
+	/** The bits.  On the heap or mapped from the filter's file */
+	private LongBuffer bits;
+
+	/**
+	 * Creates an empty filter for use with readFields
+	 */
+	public RollingBloomFilter() {
+	}
+
+	/**
+	 * Creates an empty filter
+	 * @param vectorSize The number of bits in the filter
+	 * @param nbHash The number of probes per quote
+	 */
+	public RollingBloomFilter(int vectorSize, int nbHash) {
+		this.vectorSize = vectorSize;
+		this.nbHash = nbHash;
+
+		bits = LongBuffer.wrap(new long[(vectorSize + 63) >>> 6]);
+	}
+
+	@Override
+	public void add(long quote) {
+		long hash = QuoteCodec.mix(quote);
+		int hash1 = (int) hash;
+		int hash2 = (int) (hash >>> 32);
+
+		for (int i = 0; i < nbHash; i++) {
+			int index = probe(hash1 + (i * hash2));
+			bits.put(index >>> 6, bits.get(index >>> 6) | (1L << index));
+		}
+	}
+
+	@Override
+	public boolean membershipTest(long quote) {
+		long hash = QuoteCodec.mix(quote);
+		int hash1 = (int) hash;
+		int hash2 = (int) (hash >>> 32);
+
+		for (int i = 0; i < nbHash; i++) {
+			int index = probe(hash1 + (i * hash2));
+
+			if ((bits.get(index >>> 6) & (1L << index)) == 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Maps a 32 bit hash onto a bit index without a division
+	 * @param hash The hash
+	 * @return A bit index in [0, vectorSize)
+	 */
+	private int probe(int hash) {
+		return (int) (((hash & 0xffffffffL) * vectorSize) >>> 32);
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(vectorSize);
+		out.writeInt(nbHash);
+
+		for (int i = 0; i < bits.limit(); i++) {
+			out.writeLong(bits.get(i));
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		vectorSize = in.readInt();
+		nbHash = in.readInt();
+
+		long[] array = new long[(vectorSize + 63) >>> 6];
+
+		for (int i = 0; i < array.length; i++) {
+			array[i] = in.readLong();
+		}
+
+		bits = LongBuffer.wrap(array);
+	}
+
+	@Override
+	public void wrap(ByteBuffer buffer) {
+		vectorSize = buffer.getInt(0);
+		nbHash = buffer.getInt(4);
+
+		buffer.position(8);
+		bits = buffer.slice().asLongBuffer();
+	}
+
+	@Override
+	public long getSizeInBytes() {
+		return bits.limit() * 8L;
+	}
+}
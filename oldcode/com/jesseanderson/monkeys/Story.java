@@ -1,7 +1,5 @@
 package com.jesseanderson.monkeys;
 
-import java.util.BitSet;
-
 /*
  * Copyright 2011 Jesse Anderson
  * This program is free software: you can redistribute it and/or modify
@@ -31,10 +29,34 @@ public class Story {
 	
 	/** The text of the story */
 	public String story;
-	/** The BitSet for the story */
-	public BitSet bitSet;
+	/** The characters of the story found so far.  Once loaded, change it through markFound */
+	public CoverageBitmap bitSet;
 	/** The name of the story */
 	public String name;
+	/** Counts of what's been found, kept up to date by markFound */
+	private CoverageCounters counters;
+	
+	/**
+	 * Marks a range of the story as found
+	 * @param from The first character
+	 * @param to One past the last character
+	 * @return The number of characters that weren't found before
+	 */
+	public int markFound(int from, int to) {
+		return getCounters().set(bitSet, from, to);
+	}
+	
+	/**
+	 * Gets the counts of what's been found.  They're counted from the bitmap the first time
+	 * @return The counters
+	 */
+	public CoverageCounters getCounters() {
+		if (counters == null) {
+			counters = new CoverageCounters(bitSet, story.length());
+		}
+		
+		return counters;
+	}
 	
 	/**
 	 * Gets the file path for the story file
@@ -0,0 +1,282 @@
+package com.jesseanderson.monkeys;
+
+import java.util.Arrays;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A suffix array with its LCP array over the works.  Every offset in the works is sorted by
+ * the text that starts there, so all the places a quote appears are next to each other and a
+ * binary search finds them in O(m log n) instead of scanning the whole works with indexOf.
+ * The works are kept as one byte per character with everything that isn't a-z turned into
+ * one separator byte, so offsets are the same as in the original String.
+ */
+public class SuffixArray {
+	/** The byte every character that isn't a letter becomes */
+	private static final byte SEPARATOR = ' ';
+
+	/** The works, one byte per character */
+	private final byte[] text;
+	/** The offsets of the suffixes in sorted order */
+	private final int[] suffixes;
+	/** lcp[r] is the length of the common prefix of suffixes r - 1 and r.  lcp[0] is 0 */
+	private final int[] lcp;
+
+	/**
+	 * Builds the suffix array and LCP array
+	 * @param works The works
+	 */
+	public SuffixArray(CharSequence works) {
+		int size = works.length();
+		text = new byte[size];
+
+		for (int i = 0; i < size; i++) {
+			char character = works.charAt(i);
+			text[i] = QuoteCodec.isLetter(character) ? (byte) character : SEPARATOR;
+		}
+
+		suffixes = new int[size];
+		lcp = new int[size];
+
+		int[] rank = sort();
+		buildLcp(rank);
+	}
+
+	/**
+	 * Sorts the suffixes by prefix doubling.  Each round sorts by the first 2k characters
+	 * using the ranks for k characters as keys, with one counting sort pass because the
+	 * order by the second key comes straight from the last round
+	 * @return The rank of every suffix
+	 */
+	private int[] sort() {
+		int size = text.length;
+		int[] rank = new int[size];
+		int[] order = new int[size];
+		int[] counts = new int[Math.max(size, 256) + 1];
+
+		// Start with the suffixes sorted by their first character
+		for (int i = 0; i < size; i++) {
+			rank[i] = text[i] & 0xff;
+			counts[rank[i] + 1]++;
+		}
+
+		for (int i = 1; i < counts.length; i++) {
+			counts[i] += counts[i - 1];
+		}
+
+		for (int i = 0; i < size; i++) {
+			suffixes[counts[rank[i]]++] = i;
+		}
+
+		for (int k = 1; size > 0; k <<= 1) {
+			// Order by the second key.  Suffixes with no second half come first
+			int next = 0;
+
+			for (int i = size - k; i < size; i++) {
+				if (i >= 0) {
+					order[next++] = i;
+				}
+			}
+
+			for (int i = 0; i < size; i++) {
+				if (suffixes[i] >= k) {
+					order[next++] = suffixes[i] - k;
+				}
+			}
+
+			// Stable counting sort by the first key
+			Arrays.fill(counts, 0);
+
+			for (int i = 0; i < size; i++) {
+				counts[rank[i] + 1]++;
+			}
+
+			for (int i = 1; i < counts.length; i++) {
+				counts[i] += counts[i - 1];
+			}
+
+			for (int i = 0; i < size; i++) {
+				suffixes[counts[rank[order[i]]]++] = order[i];
+			}
+
+			// Rank again, suffixes with the same 2k characters share a rank
+			int[] newRank = order;
+			int classes = 0;
+			newRank[suffixes[0]] = 0;
+
+			for (int i = 1; i < size; i++) {
+				int current = suffixes[i];
+				int previous = suffixes[i - 1];
+
+				if (rank[current] != rank[previous] || secondKey(rank, current, k) != secondKey(rank, previous, k)) {
+					classes++;
+				}
+
+				newRank[current] = classes;
+			}
+
+			order = rank;
+			rank = newRank;
+
+			if (classes == size - 1) {
+				break;
+			}
+		}
+
+		return rank;
+	}
+
+	/**
+	 * Gets the rank of the second half of a suffix's first 2k characters
+	 * @param rank The ranks for k characters
+	 * @param suffix The suffix's offset
+	 * @param k The length of each half
+	 * @return The rank or -1 if the suffix is shorter than k + 1
+	 */
+	private static int secondKey(int[] rank, int suffix, int k) {
+		return suffix + k < rank.length ? rank[suffix + k] : -1;
+	}
+
+	/**
+	 * Fills the LCP array with Kasai's algorithm in O(n)
+	 * @param rank The rank of every suffix
+	 */
+	private void buildLcp(int[] rank) {
+		int size = text.length;
+		int common = 0;
+
+		for (int i = 0; i < size; i++) {
+			if (rank[i] == 0) {
+				common = 0;
+				continue;
+			}
+
+			int previous = suffixes[rank[i] - 1];
+
+			while (i + common < size && previous + common < size && text[i + common] == text[previous + common]) {
+				common++;
+			}
+
+			lcp[rank[i]] = common;
+
+			if (common > 0) {
+				common--;
+			}
+		}
+	}
+
+	/**
+	 * Finds the first suffix that isn't smaller than the pattern
+	 * @param pattern The array holding the pattern
+	 * @param offset The index of the pattern's first character
+	 * @param length The length of the pattern
+	 * @return The rank of the first suffix starting with the pattern if there is one
+	 */
+	private int lowerBound(byte[] pattern, int offset, int length) {
+		int low = 0;
+		int high = suffixes.length;
+
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+
+			if (compare(suffixes[middle], pattern, offset, length) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Compares the start of a suffix with a pattern
+	 * @param suffix The suffix's offset
+	 * @param pattern The array holding the pattern
+	 * @param offset The index of the pattern's first character
+	 * @param length The length of the pattern
+	 * @return Less than 0, 0 or more than 0 as the suffix is before, starts with or is after the pattern
+	 */
+	private int compare(int suffix, byte[] pattern, int offset, int length) {
+		int available = Math.min(length, text.length - suffix);
+
+		for (int i = 0; i < available; i++) {
+			int difference = (text[suffix + i] & 0xff) - (pattern[offset + i] & 0xff);
+
+			if (difference != 0) {
+				return difference;
+			}
+		}
+
+		// A suffix that runs out first is a proper prefix of the pattern so it's smaller
+		return available - length;
+	}
+
+	/**
+	 * Checks if the pattern appears in the works
+	 * @param pattern The array holding the pattern
+	 * @param offset The index of the pattern's first character
+	 * @param length The length of the pattern
+	 * @return True if the pattern is somewhere in the works
+	 */
+	public boolean contains(byte[] pattern, int offset, int length) {
+		int first = lowerBound(pattern, offset, length);
+
+		return first < suffixes.length && compare(suffixes[first], pattern, offset, length) == 0;
+	}
+
+	/**
+	 * Finds every place the pattern appears in the works
+	 * @param pattern The array holding the pattern
+	 * @param offset The index of the pattern's first character
+	 * @param length The length of the pattern
+	 * @return The offsets of every occurrence, smallest first.  Empty if there are none
+	 */
+	public int[] find(byte[] pattern, int offset, int length) {
+		int first = lowerBound(pattern, offset, length);
+
+		if (first == suffixes.length || compare(suffixes[first], pattern, offset, length) != 0) {
+			return new int[0];
+		}
+
+		// The suffixes after the first share at least length characters until the LCP drops
+		int last = first + 1;
+
+		while (last < suffixes.length && lcp[last] >= length) {
+			last++;
+		}
+
+		int[] offsets = Arrays.copyOfRange(suffixes, first, last);
+		Arrays.sort(offsets);
+
+		return offsets;
+	}
+
+	/**
+	 * Gets the length of the works
+	 * @return The number of characters
+	 */
+	public int length() {
+		return text.length;
+	}
+
+	/**
+	 * Gets the memory the text, suffix array and LCP array take
+	 * @return The size in bytes
+	 */
+	public long getSizeInBytes() {
+		return text.length * 9L;
+	}
+}
@@ -0,0 +1,479 @@
+package com.jesseanderson.monkeys;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A suffix automaton over the works.  Every substring of the works is a path from the
+ * root, so a Matcher fed the monkey's stream one letter at a time always knows the longest
+ * end of the stream that appears anywhere in the works, in O(1) amortized work per letter.
+ * Any match of QUOTE_SIZE or more letters is exact, so nothing has to be double checked,
+ * and matches longer than a quote are found too.
+ *
+ * Runs of characters that aren't a-z become one separator symbol.  The monkeys never
+ * type it so no match can cross from one run of letters into the next.
+ *
+ * Building keeps each state's transitions in a linked list sized for the most there can
+ * be.  With the frozen copy that peaks at about 90 bytes per character of the works, around
+ * 512 MB for the complete works, so the driver builds it once and saves it.  Once built the
+ * automaton is frozen into one array of ints: the number of states and transitions, where
+ * each state's transitions start, each state's suffix link and length, then the transitions
+ * themselves as (target << 5) | symbol sorted by symbol.  That is 12 bytes a state and 4 a
+ * transition, about 24 bytes per character or 130 MB for the complete works.  The array is
+ * the file format too, so tasks map the saved file instead of holding it on their heap.
+ */
+public class SuffixAutomaton implements MappableQuoteFilter {
+	/** The symbol standing in for a run of characters that aren't letters */
+	private static final int SEPARATOR = LetterGenerator.LETTERS;
+	/** The number of symbols, the letters and the separator */
+	private static final int SYMBOLS = LetterGenerator.LETTERS + 1;
+	/** The number of low bits of a transition holding its symbol */
+	private static final int SYMBOL_BITS = 5;
+	/** The mask for a transition's symbol */
+	private static final int SYMBOL_MASK = (1 << SYMBOL_BITS) - 1;
+	/** The longest works that fit, so every state fits in a transition's remaining bits */
+	private static final int MAX_SIZE = (1 << (31 - SYMBOL_BITS)) - 1;
+	/** The ints before the states in the frozen layout, the number of states and transitions */
+	private static final int HEADER = 2;
+	/** Returned when a state has no transition for a symbol */
+	private static final int NONE = -1;
+
+	/** The number of letters in a quote for membershipTest */
+	private final int quoteSize;
+	/** 26^(quoteSize - 1), the place value of a quote's first letter */
+	private final long leadingPower;
+
+	/** The frozen automaton, see the class comment */
+	private IntBuffer layout;
+	/** The number of states */
+	private int states;
+	/** The number of transitions */
+	private int transitions;
+	/** Where each state's first transition is in the layout.  There's one more for the end */
+	private int firstBase;
+	/** Where the suffix links are in the layout.  The root's is NONE */
+	private int linkBase;
+	/** Where the lengths of the longest substring reaching each state are in the layout */
+	private int lengthBase;
+	/** Where the transitions are in the layout */
+	private int transitionBase;
+	/** The root's transitions by symbol.  Matchers fall back to the root often enough to skip the search */
+	private int[] rootTargets = new int[SYMBOLS];
+
+	/** While building, the length of the longest substring reaching each state */
+	private int[] buildLength;
+	/** While building, the suffix link of each state */
+	private int[] buildLink;
+	/** While building, each state's most recently added transition or NONE */
+	private int[] head;
+	/** While building, the transition added to the same state before each one or NONE */
+	private int[] next;
+	/** While building, each transition as (target << 5) | symbol */
+	private int[] edges;
+	/** While building, the state for the whole works so far */
+	private int last;
+
+	/**
+	 * Creates an empty automaton for use with readFields or wrap
+	 * @param quoteSize The number of letters in a quote
+	 */
+	public SuffixAutomaton(int quoteSize) {
+		this.quoteSize = quoteSize;
+
+		long power = 1;
+
+		for (int i = 1; i < quoteSize; i++) {
+			power *= LetterGenerator.LETTERS;
+		}
+
+		leadingPower = power;
+	}
+
+	/**
+	 * Builds the automaton
+	 * @param works The works.  Only lowercase a-z can be matched
+	 * @param quoteSize The number of letters in a quote
+	 */
+	public SuffixAutomaton(CharSequence works, int quoteSize) {
+		this(quoteSize);
+
+		int size = works.length();
+
+		if (size > MAX_SIZE) {
+			throw new IllegalArgumentException("The works are too long for the automaton: " + size);
+		}
+
+		// There are never more than 2n states or 3n transitions for n symbols
+		buildLength = new int[(2 * size) + 2];
+		buildLink = new int[(2 * size) + 2];
+		head = new int[(2 * size) + 2];
+		next = new int[(3 * size) + 4];
+		edges = new int[(3 * size) + 4];
+
+		buildLink[0] = NONE;
+		head[0] = NONE;
+		states = 1;
+		Arrays.fill(rootTargets, NONE);
+
+		boolean separated = true;
+
+		for (int i = 0; i < size; i++) {
+			char character = works.charAt(i);
+
+			if (QuoteCodec.isLetter(character)) {
+				extend(character - LetterGenerator.ASCII_OFFSET);
+				separated = false;
+			} else if (!separated) {
+				extend(SEPARATOR);
+				separated = true;
+			}
+
+			if (i % 1000000 == 0) {
+				MonkeyUtils.logger.info("Building suffix automaton " + i + "/" + size);
+			}
+		}
+
+		freeze();
+	}
+
+	/**
+	 * Adds a symbol to the end of the works with the standard online construction
+	 * @param symbol The symbol to add
+	 */
+	private void extend(int symbol) {
+		int current = newState(buildLength[last] + 1);
+
+		int state = last;
+
+		while (state != NONE && buildGet(state, symbol) == NONE) {
+			put(state, symbol, current);
+			state = buildLink[state];
+		}
+
+		if (state == NONE) {
+			buildLink[current] = 0;
+		} else {
+			int target = buildGet(state, symbol);
+
+			if (buildLength[state] + 1 == buildLength[target]) {
+				buildLink[current] = target;
+			} else {
+				// Split target so the shorter substrings get their own state
+				int clone = newState(buildLength[state] + 1);
+				buildLink[clone] = buildLink[target];
+
+				for (int edge = head[target]; edge != NONE; edge = next[edge]) {
+					put(clone, edges[edge] & SYMBOL_MASK, edges[edge] >>> SYMBOL_BITS);
+				}
+
+				while (state != NONE && buildGet(state, symbol) == target) {
+					put(state, symbol, clone);
+					state = buildLink[state];
+				}
+
+				buildLink[target] = clone;
+				buildLink[current] = clone;
+			}
+		}
+
+		last = current;
+	}
+
+	/**
+	 * Adds a state with no transitions
+	 * @param length The length of the longest substring reaching it
+	 * @return The state
+	 */
+	private int newState(int length) {
+		int state = states++;
+		buildLength[state] = length;
+		head[state] = NONE;
+
+		return state;
+	}
+
+	/**
+	 * Gets a transition while building
+	 * @param state The state to leave
+	 * @param symbol The symbol to follow
+	 * @return The state reached or NONE
+	 */
+	private int buildGet(int state, int symbol) {
+		if (state == 0) {
+			return rootTargets[symbol];
+		}
+
+		for (int edge = head[state]; edge != NONE; edge = next[edge]) {
+			if ((edges[edge] & SYMBOL_MASK) == symbol) {
+				return edges[edge] >>> SYMBOL_BITS;
+			}
+		}
+
+		return NONE;
+	}
+
+	/**
+	 * Adds or replaces a transition while building
+	 * @param state The state to leave
+	 * @param symbol The symbol to follow
+	 * @param target The state reached
+	 */
+	private void put(int state, int symbol, int target) {
+		if (state == 0) {
+			rootTargets[symbol] = target;
+		}
+
+		int edge;
+
+		for (edge = head[state]; edge != NONE; edge = next[edge]) {
+			if ((edges[edge] & SYMBOL_MASK) == symbol) {
+				break;
+			}
+		}
+
+		if (edge == NONE) {
+			edge = transitions++;
+			next[edge] = head[state];
+			head[state] = edge;
+		}
+
+		edges[edge] = (target << SYMBOL_BITS) | symbol;
+	}
+
+	/**
+	 * Lays the built automaton out in one array and lets go of the building arrays
+	 */
+	private void freeze() {
+		int[] array = new int[getLayoutInts(states, transitions)];
+		array[0] = states;
+		array[1] = transitions;
+		setBases();
+
+		int transition = transitionBase;
+
+		for (int state = 0; state < states; state++) {
+			array[firstBase + state] = transition - transitionBase;
+			array[linkBase + state] = buildLink[state];
+			array[lengthBase + state] = buildLength[state];
+
+			int first = transition;
+
+			for (int edge = head[state]; edge != NONE; edge = next[edge]) {
+				// Insertion sort by symbol, there are never more than SYMBOLS
+				int value = edges[edge];
+				int i = transition++;
+
+				while (i > first && (array[i - 1] & SYMBOL_MASK) > (value & SYMBOL_MASK)) {
+					array[i] = array[i - 1];
+					i--;
+				}
+
+				array[i] = value;
+			}
+		}
+
+		array[firstBase + states] = transitions;
+
+		buildLength = null;
+		buildLink = null;
+		head = null;
+		next = null;
+		edges = null;
+
+		layout = IntBuffer.wrap(array);
+	}
+
+	/**
+	 * Gets the number of ints in the frozen layout.  It's kept to whole longs
+	 * @param states The number of states
+	 * @param transitions The number of transitions
+	 * @return The number of ints
+	 */
+	private static int getLayoutInts(int states, int transitions) {
+		int ints = HEADER + (states + 1) + states + states + transitions;
+
+		return (ints + 1) & ~1;
+	}
+
+	/**
+	 * Works out where each part of the layout starts from the number of states
+	 */
+	private void setBases() {
+		firstBase = HEADER;
+		linkBase = firstBase + states + 1;
+		lengthBase = linkBase + states;
+		transitionBase = lengthBase + states;
+	}
+
+	/**
+	 * Reads the header of a layout and caches the root's transitions
+	 * @param buffer The layout
+	 */
+	private void setLayout(IntBuffer buffer) {
+		layout = buffer;
+		states = buffer.get(0);
+		transitions = buffer.get(1);
+		setBases();
+
+		Arrays.fill(rootTargets, NONE);
+
+		for (int i = buffer.get(firstBase); i < buffer.get(firstBase + 1); i++) {
+			int value = buffer.get(transitionBase + i);
+			rootTargets[value & SYMBOL_MASK] = value >>> SYMBOL_BITS;
+		}
+	}
+
+	/**
+	 * Gets a transition
+	 * @param state The state to leave
+	 * @param symbol The symbol to follow
+	 * @return The state reached or NONE
+	 */
+	private int get(int state, int symbol) {
+		if (state == 0) {
+			return rootTargets[symbol];
+		}
+
+		IntBuffer layout = this.layout;
+		int end = transitionBase + layout.get(firstBase + state + 1);
+
+		for (int i = transitionBase + layout.get(firstBase + state); i < end; i++) {
+			int value = layout.get(i);
+			int edgeSymbol = value & SYMBOL_MASK;
+
+			if (edgeSymbol == symbol) {
+				return value >>> SYMBOL_BITS;
+			} else if (edgeSymbol > symbol) {
+				break;
+			}
+		}
+
+		return NONE;
+	}
+
+	/**
+	 * Gets the number of states
+	 * @return The number of states
+	 */
+	public int getStates() {
+		return states;
+	}
+
+	@Override
+	public long getSizeInBytes() {
+		return layout.limit() * 4L;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		for (int i = 0; i < layout.limit(); i++) {
+			out.writeInt(layout.get(i));
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		int readStates = in.readInt();
+		int readTransitions = in.readInt();
+
+		int[] array = new int[getLayoutInts(readStates, readTransitions)];
+		array[0] = readStates;
+		array[1] = readTransitions;
+
+		for (int i = HEADER; i < array.length; i++) {
+			array[i] = in.readInt();
+		}
+
+		setLayout(IntBuffer.wrap(array));
+	}
+
+	@Override
+	public void wrap(ByteBuffer buffer) {
+		setLayout(buffer.asIntBuffer());
+	}
+
+	/**
+	 * Creates a matcher at the start of a new stream
+	 * @return The matcher
+	 */
+	public Matcher newMatcher() {
+		return new Matcher();
+	}
+
+	@Override
+	public boolean membershipTest(long quote) {
+		int state = 0;
+
+		for (long power = leadingPower; power > 0; power /= LetterGenerator.LETTERS) {
+			state = get(state, (int) ((quote / power) % LetterGenerator.LETTERS));
+
+			if (state == NONE) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Follows one monkey's stream through the automaton.  Not thread safe, every
+	 * stream needs its own
+	 */
+	public class Matcher {
+		/** The state for the longest end of the stream that is in the works */
+		private int state;
+		/** The length of that match */
+		private int matched;
+
+		/**
+		 * Adds the next letter the monkey typed
+		 * @param letter The letter, a-z
+		 * @return The number of letters at the end of the stream that appear in the works
+		 */
+		public int next(int letter) {
+			int symbol = letter - LetterGenerator.ASCII_OFFSET;
+			int target;
+
+			// Drop letters from the front of the match until it can be extended
+			while ((target = get(state, symbol)) == NONE && state != 0) {
+				state = layout.get(linkBase + state);
+				matched = layout.get(lengthBase + state);
+			}
+
+			if (target == NONE) {
+				matched = 0;
+			} else {
+				state = target;
+				matched++;
+			}
+
+			return matched;
+		}
+
+		/**
+		 * Gets the length of the current match
+		 * @return The number of letters at the end of the stream that appear in the works
+		 */
+		public int getMatched() {
+			return matched;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.jesseanderson.monkeys;
+
+import ec.util.MersenneTwisterFast;
+
+/*
+ * Copyright 2011 Jesse Anderson
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * One map call's worth of typing, identified by the run, the iteration in the run and
+ * the split in the iteration.  The letters come from a PRNG seeded only by those three
+ * so a run can be reproduced, a retried task types exactly what the lost one did and no
+ * two units in a run share a key or a stream.
+ */
+public class WorkUnit {
+	/** The JobConf property for the run's id.  Runs with the same id type the same letters */
+	public static final String RUN_PROPERTY = "monkeys.run";
+	/** The JobConf property for the iteration in the run */
+	public static final String ITERATION_PROPERTY = "monkeys.iteration";
+	/** The number of splits an iteration can have before keys would collide */
+	public static final long MAX_SPLITS = 1L << 32;
+
+	/** The run's id */
+	private final long run;
+	/** The iteration in the run */
+	private final long iteration;
+	/** The split in the iteration */
+	private final long split;
+
+	/**
+	 * Creates the unit
+	 * @param run The run's id
+	 * @param iteration The iteration in the run
+	 * @param split The split in the iteration.  Must be less than MAX_SPLITS
+	 */
+	public WorkUnit(long run, long iteration, long split) {
+		this.run = run;
+		this.iteration = iteration;
+		this.split = split;
+	}
+
+	/**
+	 * Gets the unit's key, unique in the run
+	 * @return The key
+	 */
+	public long getKey() {
+		return (iteration * MAX_SPLITS) + split;
+	}
+
+	/**
+	 * Gets the seed for one of the unit's monkeys.  The ids are mixed in one at a
+	 * time with SplitMix64 so units next to each other get unrelated seeds
+	 * @param monkey The monkey typing part of the unit, 0 when there is only one
+	 * @return The seed
+	 */
+	public long getSeed(int monkey) {
+		long seed = splitMix(run);
+		seed = splitMix(seed ^ iteration);
+		seed = splitMix(seed ^ split);
+
+		return splitMix(seed ^ monkey);
+	}
+
+	/**
+	 * Creates the letter generator for one of the unit's monkeys
+	 * @param monkey The monkey typing part of the unit, 0 when there is only one
+	 * @return The letter generator
+	 */
+	public LetterGenerator newLetterGenerator(int monkey) {
+		long seed = getSeed(monkey);
+
+		// Seeding with a long only uses the low 32 bits
+		return new LetterGenerator(new MersenneTwisterFast(new int[] { (int) seed, (int) (seed >>> 32) }));
+	}
+
+	/**
+	 * The SplitMix64 step and finalizer
+	 * @param value The value to mix
+	 * @return The mixed value
+	 */
+	static long splitMix(long value) {
+		value += 0x9e3779b97f4a7c15L;
+		value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+		value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+
+		return value ^ (value >>> 31);
+	}
+
+	@Override
+	public String toString() {
+		return "run:" + run + " iteration:" + iteration + " split:" + split;
+	}
+}
@@ -0,0 +1,330 @@
+package ec.util;
+
+import java.io.*;
+
+/**
+ * <h3>MersenneTwisterFast</h3>
+ * <p>Based on version MT199937(99/10/29)
+ * of the Mersenne Twister algorithm found at
+ * <a href="http://www.math.keio.ac.jp/matumoto/emt.html">
+ * The Mersenne Twister Home Page</a>, with the initialization
+ * improved using the new 2002/1/26 initialization algorithm.
+ *
+ * <p><b>MersenneTwisterFast</b> is algorithmically identical to
+ * MersenneTwister but is not a subclass of java.util.Random and none
+ * of its methods are synchronized.  The same instance must therefore
+ * never be shared by multiple threads; give each thread its own
+ * (for example through a ThreadLocal) and seed each one differently.
+ *
+ * <p>Only the methods needed by the monkeys are provided.  In addition
+ * to the usual java.util.Random style methods, nextBytes(...) fills a
+ * whole buffer in bulk, using all four bytes of each tempered word
+ * instead of one word per byte as MersenneTwister does.
+ *
+ * <h3>License</h3>
+ *
+ * Copyright (c) 2003 by Sean Luke. <br>
+ * Portions copyright (c) 1993 by Michael Lecuyer. <br>
+ * All rights reserved. <br>
+ *
+ * <p>Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * <ul>
+ * <li> Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * <li> Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * <li> Neither the name of the copyright owners, their employers, nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * </ul>
+ * <p>THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+*/
+
+public strictfp class MersenneTwisterFast implements Serializable, Cloneable
+    {
+    // Serialization
+    private static final long serialVersionUID = -8219700664442619525L;
+
+    // Period parameters
+    private static final int N = 624;
+    private static final int M = 397;
+    private static final int MATRIX_A = 0x9908b0df;   //    private static final * constant vector a
+    private static final int UPPER_MASK = 0x80000000; // most significant w-r bits
+    private static final int LOWER_MASK = 0x7fffffff; // least significant r bits
+
+    // Tempering parameters
+    private static final int TEMPERING_MASK_B = 0x9d2c5680;
+    private static final int TEMPERING_MASK_C = 0xefc60000;
+
+    private int mt[]; // the array for the state vector
+    private int mti; // mti==N+1 means mt[N] is not initialized
+    private int mag01[];
+
+    public Object clone()
+        {
+        try
+            {
+            MersenneTwisterFast f = (MersenneTwisterFast)(super.clone());
+            f.mt = (int[])(mt.clone());
+            f.mag01 = (int[])(mag01.clone());
+            return f;
+            }
+        catch (CloneNotSupportedException e) { throw new InternalError(); } // should never happen
+        }
+
+    public boolean stateEquals(Object o)
+        {
+        if (o==this) return true;
+        if (o == null || !(o instanceof MersenneTwisterFast))
+            return false;
+        MersenneTwisterFast other = (MersenneTwisterFast) o;
+        if (mti != other.mti) return false;
+        for(int x=0;x<mag01.length;x++)
+            if (mag01[x] != other.mag01[x]) return false;
+        for(int x=0;x<mt.length;x++)
+            if (mt[x] != other.mt[x]) return false;
+        return true;
+        }
+
+    /**
+     * Constructor using the default seed.
+     */
+    public MersenneTwisterFast()
+        {
+        this(System.currentTimeMillis());
+        }
+
+    /**
+     * Constructor using a given seed.  Though you pass this seed in
+     * as a long, it's best to make sure it's actually an integer.
+     */
+    public MersenneTwisterFast(final long seed)
+        {
+        setSeed(seed);
+        }
+
+    /**
+     * Constructor using an array of integers as seed.
+     * Your array must have a non-zero length.  Only the first 624 integers
+     * in the array are used; if the array is shorter than this then
+     * integers are repeatedly used in a wrap-around fashion.
+     */
+    public MersenneTwisterFast(final int[] array)
+        {
+        setSeed(array);
+        }
+
+    /**
+     * Initalize the pseudo random number generator.  Don't
+     * pass in a long that's bigger than an int (Mersenne Twister
+     * only uses the first 32 bits for its seed).
+     */
+    public final void setSeed(final long seed)
+        {
+        mt = new int[N];
+
+        mag01 = new int[2];
+        mag01[0] = 0x0;
+        mag01[1] = MATRIX_A;
+
+        mt[0]= (int)(seed & 0xffffffff);
+        for (mti=1; mti<N; mti++)
+            {
+            mt[mti] =
+                (1812433253 * (mt[mti-1] ^ (mt[mti-1] >>> 30)) + mti);
+            /* See Knuth TAOCP Vol2. 3rd Ed. P.106 for multiplier. */
+            mt[mti] &= 0xffffffff;
+            }
+        }
+
+    /**
+     * Sets the seed of the MersenneTwisterFast using an array of integers.
+     * Your array must have a non-zero length.  Only the first 624 integers
+     * in the array are used; if the array is shorter than this then
+     * integers are repeatedly used in a wrap-around fashion.
+     */
+    public final void setSeed(final int[] array)
+        {
+        if (array.length == 0)
+            throw new IllegalArgumentException("Array length must be greater than zero");
+        int i, j, k;
+        setSeed(19650218);
+        i=1; j=0;
+        k = (N>array.length ? N : array.length);
+        for (; k!=0; k--)
+            {
+            mt[i] = (mt[i] ^ ((mt[i-1] ^ (mt[i-1] >>> 30)) * 1664525)) + array[j] + j; /* non linear */
+            mt[i] &= 0xffffffff; /* for WORDSIZE > 32 machines */
+            i++;
+            j++;
+            if (i>=N) { mt[0] = mt[N-1]; i=1; }
+            if (j>=array.length) j=0;
+            }
+        for (k=N-1; k!=0; k--)
+            {
+            mt[i] = (mt[i] ^ ((mt[i-1] ^ (mt[i-1] >>> 30)) * 1566083941)) - i; /* non linear */
+            mt[i] &= 0xffffffff; /* for WORDSIZE > 32 machines */
+            i++;
+            if (i>=N)
+                {
+                mt[0] = mt[N-1]; i=1;
+                }
+            }
+        mt[0] = 0x80000000; /* MSB is 1; assuring non-zero initial array */
+        }
+
+    /**
+     * Regenerates all N words of the state vector at one time.
+     */
+    private void generate()
+        {
+        int y;
+        int kk;
+        final int[] mt = this.mt; // locals are slightly faster
+        final int[] mag01 = this.mag01; // locals are slightly faster
+
+        for (kk = 0; kk < N - M; kk++)
+            {
+            y = (mt[kk] & UPPER_MASK) | (mt[kk+1] & LOWER_MASK);
+            mt[kk] = mt[kk+M] ^ (y >>> 1) ^ mag01[y & 0x1];
+            }
+        for (; kk < N-1; kk++)
+            {
+            y = (mt[kk] & UPPER_MASK) | (mt[kk+1] & LOWER_MASK);
+            mt[kk] = mt[kk+(M-N)] ^ (y >>> 1) ^ mag01[y & 0x1];
+            }
+        y = (mt[N-1] & UPPER_MASK) | (mt[0] & LOWER_MASK);
+        mt[N-1] = mt[M-1] ^ (y >>> 1) ^ mag01[y & 0x1];
+
+        mti = 0;
+        }
+
+    /**
+     * Returns a random 32 bit integer.
+     */
+    public final int nextInt()
+        {
+        int y;
+
+        if (mti >= N)   // generate N words at one time
+            generate();
+
+        y = mt[mti++];
+        y ^= y >>> 11;                          // TEMPERING_SHIFT_U(y)
+        y ^= (y << 7) & TEMPERING_MASK_B;       // TEMPERING_SHIFT_S(y)
+        y ^= (y << 15) & TEMPERING_MASK_C;      // TEMPERING_SHIFT_T(y)
+        y ^= (y >>> 18);                        // TEMPERING_SHIFT_L(y)
+
+        return y;
+        }
+
+    /**
+     * Returns a random 64 bit long made from two consecutive words.
+     */
+    public final long nextLong()
+        {
+        int y;
+        int z;
+
+        if (mti >= N)   // generate N words at one time
+            generate();
+
+        y = mt[mti++];
+        y ^= y >>> 11;                          // TEMPERING_SHIFT_U(y)
+        y ^= (y << 7) & TEMPERING_MASK_B;       // TEMPERING_SHIFT_S(y)
+        y ^= (y << 15) & TEMPERING_MASK_C;      // TEMPERING_SHIFT_T(y)
+        y ^= (y >>> 18);                        // TEMPERING_SHIFT_L(y)
+
+        if (mti >= N)   // generate N words at one time
+            generate();
+
+        z = mt[mti++];
+        z ^= z >>> 11;                          // TEMPERING_SHIFT_U(z)
+        z ^= (z << 7) & TEMPERING_MASK_B;       // TEMPERING_SHIFT_S(z)
+        z ^= (z << 15) & TEMPERING_MASK_C;      // TEMPERING_SHIFT_T(z)
+        z ^= (z >>> 18);                        // TEMPERING_SHIFT_L(z)
+
+        return (((long)y) << 32) + (long)z;
+        }
+
+    /**
+     * Returns an integer drawn uniformly from 0 to n-1.  Suffice it to say,
+     * n must be > 0, or an IllegalArgumentException is raised.
+     */
+    public final int nextInt(final int n)
+        {
+        if (n<=0)
+            throw new IllegalArgumentException("n must be positive, got: " + n);
+
+        if ((n & -n) == n)
+            return (int)((n * (long)(nextInt() >>> 1)) >> 31);
+
+        int bits, val;
+        do
+            {
+            bits = nextInt() >>> 1;
+            val = bits % n;
+            }
+        while(bits - val + (n-1) < 0);
+        return val;
+        }
+
+    /**
+     * Fills the entire array with random bytes.  Unlike MersenneTwister, which
+     * spends a whole 32 bit word on every byte, all four bytes of each word are used.
+     */
+    public final void nextBytes(final byte[] bytes)
+        {
+        nextBytes(bytes, 0, bytes.length);
+        }
+
+    /**
+     * Fills length bytes of the array starting at offset with random bytes.
+     */
+    public final void nextBytes(final byte[] bytes, final int offset, final int length)
+        {
+        final int end = offset + length;
+        int x = offset;
+        int y;
+
+        while (x < end)
+            {
+            if (mti >= N)   // generate N words at one time
+                generate();
+
+            y = mt[mti++];
+            y ^= y >>> 11;                          // TEMPERING_SHIFT_U(y)
+            y ^= (y << 7) & TEMPERING_MASK_B;       // TEMPERING_SHIFT_S(y)
+            y ^= (y << 15) & TEMPERING_MASK_C;      // TEMPERING_SHIFT_T(y)
+            y ^= (y >>> 18);                        // TEMPERING_SHIFT_L(y)
+
+            if (end - x >= 4)
+                {
+                bytes[x++] = (byte)y;
+                bytes[x++] = (byte)(y >>> 8);
+                bytes[x++] = (byte)(y >>> 16);
+                bytes[x++] = (byte)(y >>> 24);
+                }
+            else
+                {
+                while (x < end)
+                    {
+                    bytes[x++] = (byte)y;
+                    y >>>= 8;
+                    }
+                }
+            }
+        }
+    }